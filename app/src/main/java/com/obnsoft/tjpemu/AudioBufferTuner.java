@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Locale;
+
+import android.media.AudioTrack;
+
+/**
+ * Tuner of the buffer size of a low latency sound output. It starts from the minimum size,
+ * and grows by one burst each time the output underruns while it has been fed. The buffer
+ * never shrinks, so that it settles at the smallest size which the device can sustain.
+ */
+public class AudioBufferTuner {
+
+    private static final long ONE_SECOND_NS = 1000000000L;
+
+    private final int   mBurstFrames;
+    private final int   mSampleRate;
+    private int         mLastUnderruns; // accessed by the sound worker only
+    private volatile int mBufferFrames;
+    private volatile int mCapacityFrames;
+    private volatile int mUnderruns;
+    private volatile int mGrowths;
+
+    /*-----------------------------------------------------------------------*/
+
+    public AudioBufferTuner(int burstFrames, int sampleRate) {
+        mBurstFrames = burstFrames;
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Applies the initial size to a new output.
+     */
+    public void start(AudioTrack audioTrack, int initialFrames) {
+        mCapacityFrames = audioTrack.getBufferCapacityInFrames();
+        int frames = audioTrack.setBufferSizeInFrames(Math.min(initialFrames, mCapacityFrames));
+        mBufferFrames = (frames > 0) ? frames : audioTrack.getBufferSizeInFrames();
+        rebase(audioTrack);
+    }
+
+    /**
+     * Ignores the underruns so far, e.g. while the output wasn't fed on purpose.
+     */
+    public void rebase(AudioTrack audioTrack) {
+        mLastUnderruns = audioTrack.getUnderrunCount();
+    }
+
+    /**
+     * Checks the underruns after a write, and grows the buffer if needed.
+     *
+     * @param isStarved true if the samples were late from the emulation, which the size of the
+     *                  buffer doesn't help.
+     */
+    public void update(AudioTrack audioTrack, boolean isStarved) {
+        int underruns = audioTrack.getUnderrunCount();
+        if (underruns == mLastUnderruns) {
+            return;
+        }
+        mUnderruns += underruns - mLastUnderruns;
+        mLastUnderruns = underruns;
+        if (!isStarved && mBufferFrames < mCapacityFrames) {
+            int frames = audioTrack.setBufferSizeInFrames(
+                    Math.min(mBufferFrames + mBurstFrames, mCapacityFrames));
+            if (frames > 0) {
+                mBufferFrames = frames;
+                mGrowths++;
+            }
+        }
+    }
+
+    public int getBufferFrames() {
+        return mBufferFrames;
+    }
+
+    public int getUnderruns() {
+        return mUnderruns;
+    }
+
+    /**
+     * Returns the latency of the buffer when it's full in nanoseconds.
+     */
+    public long getLatency() {
+        return mBufferFrames * ONE_SECOND_NS / mSampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "buffer=%d/%d frames (%.1fms) underruns=%d growths=%d",
+                mBufferFrames, mCapacityFrames, getLatency() / 1000000.0, mUnderruns, mGrowths);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Locale;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+
+/**
+ * Clock of the sound output, which measures how long the queued samples take to be heard.
+ * It's updated by the sound worker after each write, and it tells the emulation worker how
+ * much to scale the speed so that the queue stays at the target, i.e. a dynamic rate control
+ * which corrects the drift between the system clock and the clock of the sound device.
+ * <p>
+ * The played position is taken from AudioTrack.getTimestamp(), which includes the latency of
+ * the device, or from the playback head position until a timestamp is available.
+ */
+public class AudioClock {
+
+    private static final long ONE_SECOND_NS = 1000000000L;
+    private static final float MAX_DEVIATION = 0.005f; // scale the speed by 0.5% at most
+    private static final float SMOOTHING = 0.05f;
+    private static final float INTEGRAL_GAIN = 0.002f;
+    private static final long HEAD_POSITION_MASK = 0xFFFFFFFFL;
+
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private long    mWrittenFrames; // accessed by the sound worker only
+    private float   mIntegral;
+    private volatile boolean mIsValid;
+    private volatile long   mLatency;
+    private volatile long   mTarget;
+    private volatile float  mRateScale = 1f;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Starts over, e.g. after the output has been flushed.
+     */
+    public void reset() {
+        mWrittenFrames = 0;
+        mIntegral = 0f;
+        mIsValid = false;
+        mRateScale = 1f;
+    }
+
+    /**
+     * Updates the clock after frames have been written to the output.
+     *
+     * @param queuedTime the duration of the samples which are queued before the output.
+     */
+    public void onWritten(AudioTrack audioTrack, int frames, int sampleRate, long queuedTime) {
+        mWrittenFrames += frames;
+        long currentTime = System.nanoTime();
+        long playedFrames;
+        if (audioTrack.getTimestamp(mTimestamp)) {
+            playedFrames = mTimestamp.framePosition
+                    + (currentTime - mTimestamp.nanoTime) * sampleRate / ONE_SECOND_NS;
+        } else {
+            playedFrames = audioTrack.getPlaybackHeadPosition() & HEAD_POSITION_MASK;
+        }
+        long pendingFrames = Math.max(mWrittenFrames - playedFrames, 0);
+        long latency = pendingFrames * ONE_SECOND_NS / sampleRate + queuedTime;
+        long target = audioTrack.getBufferSizeInFrames() * ONE_SECOND_NS / sampleRate / 2;
+        if (!mIsValid) {
+            mLatency = latency;
+            mIsValid = true;
+        } else {
+            mLatency += (long) ((latency - mLatency) * SMOOTHING);
+        }
+        mTarget = target;
+        if (target > 0) {
+            float error = Math.max(-1f, Math.min((float) (target - mLatency) / target, 1f));
+            mIntegral = Math.max(-1f, Math.min(mIntegral + error * INTEGRAL_GAIN, 1f));
+            mRateScale = 1f + MAX_DEVIATION * Math.max(-1f, Math.min(error + mIntegral, 1f));
+        }
+    }
+
+    public boolean isValid() {
+        return mIsValid;
+    }
+
+    /**
+     * Returns the smoothed duration from writing a sample to hearing it in nanoseconds.
+     */
+    public long getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Returns the scale of the emulation speed, which is slightly below 1 while the queue is
+     * longer than the target, and above 1 while it's shorter.
+     */
+    public float getRateScale() {
+        return mRateScale;
+    }
+
+    @Override
+    public String toString() {
+        if (!mIsValid) {
+            return "-";
+        }
+        return String.format(Locale.US, "latency=%.1fms target=%.1fms scale=%.4f",
+                mLatency / 1000000.0, mTarget / 1000000.0, mRateScale);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of the buttons published as a single bitmask, where bit N stands for the button
+ * Native.BUTTON_* = N. It's written by input events on the UI thread and read by the emulation
+ * worker and the renderer without locking. Touches, keys and joystick axes are kept apart and
+ * merged on reading, so that releasing one source doesn't cancel another.
+ * <p>
+ * Every press is also latched until the emulation worker polls it, so that a press released
+ * before the next frame still reaches the core for one frame.
+ */
+public class ButtonInput {
+
+    public static final int MASK_ALL = (1 << Native.BUTTON_MAX) - 1;
+
+    private final AtomicInteger mTouchMask = new AtomicInteger();
+    private final AtomicInteger mKeyMask = new AtomicInteger();
+    private final AtomicInteger mAxisMask = new AtomicInteger();
+    private final AtomicInteger mLatchedMask = new AtomicInteger();
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the current bitmask of the pressed buttons.
+     */
+    public int get() {
+        return mTouchMask.get() | mKeyMask.get() | mAxisMask.get();
+    }
+
+    /**
+     * Returns the current bitmask with the presses latched since the last poll, and clears the
+     * latch. It must be called by the emulation worker only, once per frame.
+     */
+    public int poll() {
+        return get() | mLatchedMask.getAndSet(0);
+    }
+
+    /**
+     * Publishes the buttons pressed by touches.
+     *
+     * @return the previous bitmask of touches.
+     */
+    public int setTouchMask(int mask) {
+        mask &= MASK_ALL;
+        int oldMask = mTouchMask.getAndSet(mask);
+        latch(mask & ~oldMask);
+        return oldMask;
+    }
+
+    /**
+     * Publishes a button pressed or released by a key of a keyboard or a gamepad.
+     */
+    public void setKey(int buttonIdx, boolean isPressed) {
+        int bit = 1 << buttonIdx;
+        if (isPressed) {
+            int oldMask = mKeyMask.getAndAccumulate(bit, (a, b) -> a | b);
+            latch(bit & ~oldMask);
+        } else {
+            mKeyMask.accumulateAndGet(~bit, (a, b) -> a & b);
+        }
+    }
+
+    /**
+     * Publishes the buttons pressed by the axes of a joystick or a hat switch.
+     *
+     * @return the previous bitmask of axes.
+     */
+    public int setAxisMask(int mask) {
+        mask &= MASK_ALL;
+        int oldMask = mAxisMask.getAndSet(mask);
+        latch(mask & ~oldMask);
+        return oldMask;
+    }
+
+    /**
+     * Releases all buttons held by keys and axes, e.g. when the window loses the focus.
+     */
+    public void releaseKeys() {
+        mKeyMask.set(0);
+        mAxisMask.set(0);
+    }
+
+    public static boolean isPressed(int mask, int buttonIdx) {
+        return (mask & (1 << buttonIdx)) != 0;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void latch(int pressedMask) {
+        if (pressedMask != 0) {
+            mLatchedMask.accumulateAndGet(pressedMask, (a, b) -> a | b);
+        }
+    }
+}
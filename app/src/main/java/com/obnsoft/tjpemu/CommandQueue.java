@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lock-free multi-producer queue of commands which are executed by a single owner thread.
+ * Any thread may submit a command; the owner runs them in order when it calls drain().
+ * <p>
+ * Waiting for a result is bounded, so that a caller such as the UI thread is never blocked
+ * by an owner which is stuck in a long operation.
+ */
+public class CommandQueue {
+
+    public static final long TIMEOUT_NS = 2000000000L;
+
+    private static final long POLL_NS = 50000000L;
+
+    private final ConcurrentLinkedQueue<FutureTask<?>> mQueue = new ConcurrentLinkedQueue<>();
+    private volatile Thread mOwner;
+    private volatile BooleanSupplier mStallCheck;
+
+    /*-----------------------------------------------------------------------*/
+
+    public void setOwner(Thread owner) {
+        mOwner = owner;
+    }
+
+    public boolean isOwner() {
+        return (Thread.currentThread() == mOwner);
+    }
+
+    /**
+     * Sets the check whether the owner thread is stuck, which makes call() give up waiting
+     * without reaching the timeout.
+     */
+    public void setStallCheck(BooleanSupplier stallCheck) {
+        mStallCheck = stallCheck;
+    }
+
+    /**
+     * Enqueues a command and wakes the owner thread up.
+     *
+     * @return the future to get the result of the command.
+     */
+    public <T> Future<T> submit(Callable<T> command) {
+        FutureTask<T> task = new FutureTask<>(command);
+        mQueue.offer(task);
+        LockSupport.unpark(mOwner);
+        return task;
+    }
+
+    /**
+     * Executes a command and waits for the result. If the caller is the owner thread, it's
+     * executed immediately. If the owner is stuck or the result doesn't come in TIMEOUT_NS,
+     * the command is cancelled unless it has already started.
+     *
+     * @return the result, or defaultValue if the command failed or timed out.
+     */
+    public <T> T call(Callable<T> command, T defaultValue) {
+        if (isOwner()) {
+            try {
+                return command.call();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return defaultValue;
+            }
+        }
+        return await(submit(command), defaultValue, mStallCheck);
+    }
+
+    /**
+     * Executes all the pending commands. It must be called by the owner thread.
+     */
+    public void drain() {
+        FutureTask<?> task;
+        while ((task = mQueue.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Waits for the result of a future up to TIMEOUT_NS.
+     *
+     * @return the result, or defaultValue if the future failed or timed out.
+     */
+    public static <T> T await(Future<T> future, T defaultValue) {
+        return await(future, defaultValue, null);
+    }
+
+    private static <T> T await(Future<T> future, T defaultValue, BooleanSupplier stallCheck) {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (true) {
+            try {
+                return future.get(POLL_NS, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if ((stallCheck != null && stallCheck.getAsBoolean())
+                        || System.nanoTime() - deadline >= 0) {
+                    e.printStackTrace();
+                    future.cancel(false);
+                    return defaultValue;
+                }
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                e.printStackTrace();
+                return defaultValue;
+            }
+        }
+    }
+}
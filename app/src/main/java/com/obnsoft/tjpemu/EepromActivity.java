@@ -163,8 +163,8 @@ public class EepromActivity extends AppCompatActivity {
 
         /*  Body  */
         SpannableStringBuilder sb = new SpannableStringBuilder();
-        int rowMax = TJPEmulator.EEPROM_SIZE / columnMax;
-        byte eeprom[] = mApp.getTJPEmulator().getEeprom();
+        byte eeprom[] = mApp.getTJPEmulator().getEeprom(); // null if the emulation is busy
+        int rowMax = (eeprom != null) ? TJPEmulator.EEPROM_SIZE / columnMax : 0;
         for (int row = 0; row < rowMax; row++) {
             int start = sb.length();
             ForegroundColorSpan span = new ForegroundColorSpan(Color.GRAY);
@@ -176,7 +176,9 @@ public class EepromActivity extends AppCompatActivity {
             sb.append('\n');
         }
         int length = sb.length();
-        sb.delete(length - 1, length);
+        if (length > 0) {
+            sb.delete(length - 1, length);
+        }
         mTextViewBody.setText(sb);
 
         /*  Adjust scroll offset  */
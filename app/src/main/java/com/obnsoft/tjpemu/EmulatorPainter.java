@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.nio.ByteBuffer;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.util.DisplayMetrics;
+import android.view.MotionEvent;
+
+/**
+ * Lays out and draws the skin, the OLED screen and the buttons, and tracks the touches on the
+ * buttons. It's shared by the renderers so that they differ only in how a canvas is obtained.
+ * The skin and the idle buttons are pre-rendered into a static layer whenever the size changes.
+ * The OLED screen is an ALPHA_8 bitmap which is coloured by the paint of the selected theme.
+ */
+public class EmulatorPainter {
+
+    private static final int SKIN_W = 144;
+    private static final int SKIN_H = 144;
+
+    private static final int SCREEN_X = 8;
+    private static final int SCREEN_Y = 32;
+    private static final int SCREEN_W = TJPEmulator.SCREEN_WIDTH;
+    private static final int SCREEN_H = TJPEmulator.SCREEN_HEIGHT;
+
+    private static final int BUTTON_DPAD_G  = 30;
+    private static final int BUTTON_A_GX    = 8;
+    private static final int BUTTON_A_GY    = 8;
+    private static final int BUTTON_SIZE    = 20;
+    private static final int BUTTON_COLOR_ON  = Color.argb(224, 192, 192, 128);
+    private static final int BUTTON_COLOR_OFF = Color.argb(160, 192, 192, 192);
+
+    private static final int HIT_CELL_SIZE = 8;
+    private static final float HIT_RADIUS_RATIO = 1.25f;
+
+    public static final int THEME_WHITE     = 0;
+    public static final int THEME_BLUE      = 1;
+    public static final int THEME_TWO_TONE  = 2;
+
+    private static final int SCREEN_COLOR_BACK   = Color.BLACK;
+    private static final int SCREEN_COLOR_WHITE  = Color.rgb(240, 248, 255);
+    private static final int SCREEN_COLOR_BLUE   = Color.rgb(64, 200, 255);
+    private static final int SCREEN_COLOR_YELLOW = Color.rgb(255, 224, 32);
+    private static final int SCREEN_TWO_TONE_ROWS = 16;
+
+    private Resources   mResources;
+    private float       mBaseX, mBaseY, mScale;
+    private DrawObject  mSkin;
+    private DrawObject  mScreen;
+    private ByteBuffer  mScreenBuffer = ByteBuffer.allocateDirect(SCREEN_W * SCREEN_H);
+    private Paint       mScreenBackPaint;
+    private RectF       mScreenBounds = new RectF();
+    private Paint       mButtonPaint;
+    private FrameExchanger mFrameExchanger = new FrameExchanger(SCREEN_W * SCREEN_H);
+    private Bitmap      mStaticLayer;
+    private boolean     mIsCached = true;
+    private FrameStats  mCachedDrawStats = new FrameStats();
+    private FrameStats  mDirectDrawStats = new FrameStats();
+
+    private ButtonInput mButtonInput = new ButtonInput();
+    private LatencyTracker mLatencyTracker = new LatencyTracker();
+    private int         mDrawnButtonMask;
+    private PointF[]    mButtonPosition = new PointF[Native.BUTTON_MAX];
+    private Rect[]      mButtonRect = new Rect[Native.BUTTON_MAX];
+    private float       mButtonSize;
+    private volatile HitMap mHitMap = new HitMap(new byte[0], 0, 0);
+
+    /*-----------------------------------------------------------------------*/
+
+    class DrawObject {
+
+        public Bitmap bitmap;
+        public Matrix matrix;
+        public Paint  paint;
+
+        public DrawObject(int drawableId, boolean isOnlyAlpha) {
+            Bitmap bitmap = BitmapFactory.decodeResource(mResources, drawableId);
+            this.matrix = new Matrix();
+            this.paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            if (isOnlyAlpha) {
+                this.bitmap = bitmap.extractAlpha();
+                this.paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.ADD));
+                bitmap.recycle();
+            } else {
+                this.bitmap = bitmap;
+            }
+        }
+
+        public DrawObject(Bitmap bitmap, Matrix matrix, Paint paint) {
+            this.bitmap = bitmap;
+            this.matrix = (matrix == null) ? new Matrix() : matrix;
+            this.paint  = (paint  == null) ? new Paint()  : paint;
+        }
+
+        public void setCoords(float x, float y, float w, float h) {
+            matrix.setScale(mScale * w / bitmap.getWidth(), mScale * h / bitmap.getHeight());
+            matrix.postTranslate(mBaseX + x * mScale, mBaseY + y * mScale);
+        }
+
+        public void setCoordsCenter(float x, float y, float w, float h) {
+            setCoords(x - w / 2f, y - h / 2f, w, h);
+        }
+
+        public void draw(Canvas canvas) {
+            if (!bitmap.isRecycled()) {
+                canvas.drawBitmap(bitmap, matrix, paint);
+            }
+        }
+
+        public void recycle() {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Bitmask of buttons for each cell, which is replaced as a whole when the layout changes
+     * since it's read by the UI thread.
+     */
+    private static class HitMap {
+
+        public final byte[] cells;
+        public final int    w;
+        public final int    h;
+
+        public HitMap(byte[] cells, int w, int h) {
+            this.cells = cells;
+            this.w = w;
+            this.h = h;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public EmulatorPainter(Resources resources) {
+        mResources = resources;
+        mSkin = new DrawObject(R.drawable.ssd1306, false);
+        Paint screenPaint = new Paint(0); // No ANTI_ALIAS_FLAG, No FILTER_BITMAP_FLAG
+        screenPaint.setFilterBitmap(false);
+        mScreen = new DrawObject(Bitmap.createBitmap(SCREEN_W, SCREEN_H, Bitmap.Config.ALPHA_8),
+                null, screenPaint);
+        mScreenBackPaint = new Paint(0);
+        mScreenBackPaint.setColor(SCREEN_COLOR_BACK);
+        setTheme(THEME_WHITE);
+        mButtonPaint = new Paint();
+        mButtonPaint.setAntiAlias(true);
+        mButtonPaint.setStyle(Paint.Style.FILL);
+
+        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+            mButtonPosition[buttonIdx] = new PointF();
+            mButtonRect[buttonIdx] = new Rect();
+        }
+    }
+
+    public void setButtonInput(ButtonInput buttonInput) {
+        mButtonInput = buttonInput;
+    }
+
+    public void setLatencyTracker(LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
+    /**
+     * Looks the touches up in the hit map and publishes the pressed buttons.
+     *
+     * @return the bits of the buttons whose state flipped.
+     */
+    public int onTouchEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+        int mask = 0;
+        if (action != MotionEvent.ACTION_UP && action != MotionEvent.ACTION_CANCEL) {
+            int liftedIdx = (action == MotionEvent.ACTION_POINTER_UP)
+                    ? event.getActionIndex() : -1;
+            for (int touchIdx = 0; touchIdx < event.getPointerCount(); touchIdx++) {
+                if (touchIdx != liftedIdx) {
+                    mask |= hitTest(event.getX(touchIdx), event.getY(touchIdx));
+                }
+            }
+        }
+        int flippedMask = mButtonInput.setTouchMask(mask) ^ mask;
+        if (flippedMask != 0) {
+            mLatencyTracker.markInput(event.getEventTime());
+        }
+        return flippedMask;
+    }
+
+    public void layout(int w, int h) {
+        /*  Skin position  */
+        boolean isLandscape = (w > h);
+        int tmpH = isLandscape ? SKIN_H : SKIN_H * 4 / 3;
+        mScale = Math.max(Math.min(w / SKIN_W, h / tmpH), 1);
+        mBaseX = (w - SKIN_W * mScale) / 2f;
+        mBaseY = (h - tmpH * mScale) / 2f;
+        mSkin.setCoords(0, 0, SKIN_W, SKIN_H);
+        mScreen.setCoords(SCREEN_X, SCREEN_Y, SCREEN_W, SCREEN_H);
+
+        /*  Buttons position  */
+        DisplayMetrics displayMetrics = mResources.getDisplayMetrics();
+        float buttonScale = displayMetrics.density * 2f;
+        float dpadX, dpadY, aX, aY;
+        float dpadGap = BUTTON_DPAD_G * buttonScale;
+        mButtonSize = BUTTON_SIZE * buttonScale;
+        dpadX = (BUTTON_SIZE + BUTTON_DPAD_G) * buttonScale;
+        dpadY = h - dpadX;
+        aX = w - (BUTTON_SIZE + BUTTON_A_GX) * buttonScale;
+        aY = h - (BUTTON_SIZE + BUTTON_A_GY) * buttonScale;
+        mButtonPosition[Native.BUTTON_UP   ].set(dpadX, dpadY - dpadGap);
+        mButtonPosition[Native.BUTTON_DOWN ].set(dpadX, dpadY + dpadGap);
+        mButtonPosition[Native.BUTTON_LEFT ].set(dpadX - dpadGap, dpadY);
+        mButtonPosition[Native.BUTTON_RIGHT].set(dpadX + dpadGap, dpadY);
+        mButtonPosition[Native.BUTTON_A    ].set(aX, aY);
+
+        /*  Bounds of the screen and the buttons  */
+        mScreenBounds.set(mBaseX + SCREEN_X * mScale, mBaseY + SCREEN_Y * mScale,
+                mBaseX + (SCREEN_X + SCREEN_W) * mScale, mBaseY + (SCREEN_Y + SCREEN_H) * mScale);
+        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+            PointF position = mButtonPosition[buttonIdx];
+            int radius = (int) Math.ceil(mButtonSize) + 1;
+            mButtonRect[buttonIdx].set((int) position.x - radius, (int) position.y - radius,
+                    (int) position.x + radius, (int) position.y + radius);
+        }
+
+        /*  Hit map  */
+        int hitMapW = (w + HIT_CELL_SIZE - 1) / HIT_CELL_SIZE;
+        int hitMapH = (h + HIT_CELL_SIZE - 1) / HIT_CELL_SIZE;
+        byte[] hitMap = new byte[hitMapW * hitMapH];
+        float threshold = mButtonSize * HIT_RADIUS_RATIO;
+        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+            PointF position = mButtonPosition[buttonIdx];
+            int left = Math.max((int) ((position.x - threshold) / HIT_CELL_SIZE), 0);
+            int top = Math.max((int) ((position.y - threshold) / HIT_CELL_SIZE), 0);
+            int right = Math.min((int) ((position.x + threshold) / HIT_CELL_SIZE), hitMapW - 1);
+            int bottom = Math.min((int) ((position.y + threshold) / HIT_CELL_SIZE), hitMapH - 1);
+            for (int y = top; y <= bottom; y++) {
+                for (int x = left; x <= right; x++) {
+                    float cx = (x + 0.5f) * HIT_CELL_SIZE, cy = (y + 0.5f) * HIT_CELL_SIZE;
+                    if (PointF.length(cx - position.x, cy - position.y) <= threshold) {
+                        hitMap[y * hitMapW + x] |= 1 << buttonIdx;
+                    }
+                }
+            }
+        }
+        mHitMap = new HitMap(hitMap, hitMapW, hitMapH);
+
+        /*  Static layer  */
+        if (mStaticLayer != null) {
+            mStaticLayer.recycle();
+            mStaticLayer = null;
+        }
+        if (w > 0 && h > 0 && !mSkin.bitmap.isRecycled()) {
+            mStaticLayer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(mStaticLayer);
+            mSkin.draw(canvas);
+            canvas.drawRect(mScreenBounds, mScreenBackPaint);
+            mButtonPaint.setColor(BUTTON_COLOR_OFF);
+            for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+                canvas.drawCircle(mButtonPosition[buttonIdx].x, mButtonPosition[buttonIdx].y,
+                        mButtonSize, mButtonPaint);
+            }
+        }
+    }
+
+    /**
+     * Enables to draw the static layer instead of the skin and the idle buttons. It must be
+     * called by the thread which draws.
+     */
+    public void setCached(boolean isCached) {
+        mIsCached = isCached;
+    }
+
+    /**
+     * Selects the colour of the OLED screen. It costs nothing per pixel since the colour is
+     * applied by the paint when the bitmap is drawn. It must be called by the thread which
+     * draws.
+     */
+    public void setTheme(int theme) {
+        Paint paint = mScreen.paint;
+        switch (theme) {
+        default:
+        case THEME_WHITE:
+            paint.setShader(null);
+            paint.setColor(SCREEN_COLOR_WHITE);
+            break;
+        case THEME_BLUE:
+            paint.setShader(null);
+            paint.setColor(SCREEN_COLOR_BLUE);
+            break;
+        case THEME_TWO_TONE:
+            float border = (float) SCREEN_TWO_TONE_ROWS / SCREEN_H;
+            paint.setShader(new LinearGradient(0, 0, 0, SCREEN_H,
+                    new int[] { SCREEN_COLOR_YELLOW, SCREEN_COLOR_YELLOW,
+                            SCREEN_COLOR_BLUE, SCREEN_COLOR_BLUE },
+                    new float[] { 0f, border, border, 1f }, Shader.TileMode.CLAMP));
+            break;
+        }
+    }
+
+    /**
+     * Returns whether the buttons have changed since the last draw.
+     */
+    public boolean isButtonChanged() {
+        return (mButtonInput.get() != mDrawnButtonMask);
+    }
+
+    /**
+     * Returns whether a new frame has been published or the buttons have changed since the
+     * last draw.
+     */
+    public boolean isUpdated() {
+        return mFrameExchanger.isFresh() || isButtonChanged();
+    }
+
+    public void draw(Canvas canvas) {
+        long startTime = System.nanoTime();
+        Bitmap staticLayer = mStaticLayer;
+        boolean isCached = mIsCached && staticLayer != null;
+        int buttonMask = mButtonInput.get();
+        mDrawnButtonMask = buttonMask;
+
+        /*  Skin  */
+        if (isCached) {
+            canvas.save();
+            for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+                if (ButtonInput.isPressed(buttonMask, buttonIdx)) {
+                    canvas.clipOutRect(mButtonRect[buttonIdx]);
+                }
+            }
+            canvas.drawBitmap(staticLayer, 0, 0, null);
+            canvas.restore();
+        } else {
+            mSkin.draw(canvas);
+            canvas.drawRect(mScreenBounds, mScreenBackPaint);
+        }
+
+        /*  OLED  */
+        byte[] pixels = mFrameExchanger.acquire();
+        if (pixels != null && !mScreen.bitmap.isRecycled()) {
+            mScreenBuffer.clear();
+            mScreenBuffer.put(pixels);
+            mScreenBuffer.rewind();
+            mScreen.bitmap.copyPixelsFromBuffer(mScreenBuffer);
+        }
+        mScreen.draw(canvas);
+        if (pixels != null) {
+            mLatencyTracker.onDrawn(System.nanoTime());
+        }
+
+        /*  Buttons  */
+        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+            boolean isPressed = ButtonInput.isPressed(buttonMask, buttonIdx);
+            if (isCached && !isPressed) {
+                continue;
+            }
+            if (isCached) {
+                canvas.save();
+                canvas.clipRect(mButtonRect[buttonIdx]);
+                mSkin.draw(canvas);
+                canvas.restore();
+            }
+            mButtonPaint.setColor(isPressed ? BUTTON_COLOR_ON : BUTTON_COLOR_OFF);
+            canvas.drawCircle(mButtonPosition[buttonIdx].x, mButtonPosition[buttonIdx].y,
+                    mButtonSize, mButtonPaint);
+        }
+        long drawTime = System.nanoTime() - startTime;
+        (isCached ? mCachedDrawStats : mDirectDrawStats).record(drawTime);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Hands a frame over to the renderer. It's called from the emulation thread and never
+     * blocks; each pixel is packed into a byte of intensity, and the bitmap is updated with
+     * the newest frame in draw().
+     */
+    public void updateScreen(int[] pixels) {
+        byte[] buffer = mFrameExchanger.getBackBuffer();
+        for (int i = 0; i < SCREEN_W * SCREEN_H; i++) {
+            buffer[i] = (byte) (pixels[i] >> 8); // green channel
+        }
+        mFrameExchanger.publish();
+    }
+
+    public FrameExchanger getFrameExchanger() {
+        return mFrameExchanger;
+    }
+
+    public String getDrawStatistics() {
+        return "Draw (cached): " + mCachedDrawStats + "\nDraw (direct): " + mDirectDrawStats;
+    }
+
+    public void recycle() {
+        mSkin.recycle();
+        mScreen.recycle();
+        if (mStaticLayer != null) {
+            mStaticLayer.recycle();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the bitmask of the buttons which cover a point, looked up in the hit map.
+     */
+    private int hitTest(float x, float y) {
+        HitMap hitMap = mHitMap;
+        int cellX = (int) x / HIT_CELL_SIZE, cellY = (int) y / HIT_CELL_SIZE;
+        if (x < 0 || y < 0 || cellX >= hitMap.w || cellY >= hitMap.h) {
+            return 0;
+        }
+        return hitMap.cells[cellY * hitMap.w + cellX];
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+/**
+ * Renderer of the emulator which the emulation worker talks to.
+ */
+public interface EmulatorScreen {
+
+    /**
+     * Hands a frame over to the renderer. It's called from the emulation thread and never
+     * blocks.
+     */
+    void updateScreen(int[] pixels);
+
+    /**
+     * Requests the renderer to present the newest frame. It's called from the emulation thread.
+     */
+    void requestRender();
+
+    /**
+     * Requests the renderer to present the buttons changed by keys or a gamepad. It's called
+     * from the UI thread.
+     */
+    void requestButtonRender();
+
+    /**
+     * Selects the colour of the OLED screen. It's called from the UI thread, and the painter
+     * is changed on the thread which draws.
+     */
+    void setTheme(int theme);
+
+    /**
+     * Enables the static layer of the painter. It's called from the UI thread, and the painter
+     * is changed on the thread which draws.
+     */
+    void setCached(boolean isCached);
+
+    EmulatorPainter getPainter();
+
+    void onDestroy();
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Renderer which draws on its own surface from a dedicated render thread. The thread pulls the
+ * newest frame in step with vsync, so emulated frames never go through the UI thread.
+ * <p>
+ * The render thread lives only while the surface exists, and it stops waiting for vsync while
+ * there is nothing new to draw.
+ */
+public class EmulatorSurfaceView extends SurfaceView
+        implements EmulatorScreen, SurfaceHolder.Callback, Choreographer.FrameCallback {
+
+    private static final int BACKGROUND_COLOR = Color.BLACK;
+
+    private EmulatorPainter mPainter;
+    private HandlerThread   mRenderThread;  // accessed by the UI thread only
+    private volatile Handler mRenderHandler;
+    private Choreographer   mChoreographer; // accessed by the render thread only
+    private Surface         mSurface;
+    private boolean         mIsForced;
+    private final AtomicBoolean mIsScheduled = new AtomicBoolean();
+
+    private final Runnable  mFrameScheduler = new Runnable() {
+        @Override
+        public void run() {
+            if (mSurface != null) {
+                mChoreographer.postFrameCallback(EmulatorSurfaceView.this);
+            } else {
+                mIsScheduled.set(false);
+            }
+        }
+    };
+
+    /*-----------------------------------------------------------------------*/
+
+    public EmulatorSurfaceView(Context context) {
+        this(context, null);
+    }
+
+    public EmulatorSurfaceView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public EmulatorSurfaceView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        setFocusable(false);
+        mPainter = new EmulatorPainter(getResources());
+        getHolder().addCallback(this);
+    }
+
+    @Override
+    @SuppressLint("ClickableViewAccessibility")
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mPainter.onTouchEvent(event) != 0) {
+            scheduleFrame();
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        stopRenderThread();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        runOnRenderThread(() -> {
+            mPainter.layout(w, h);
+            mIsForced = true;
+        });
+        scheduleFrame();
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        startRenderThread();
+        runOnRenderThread(() -> {
+            mSurface = holder.getSurface();
+            mIsForced = true;
+        });
+        scheduleFrame();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        runOnRenderThread(() -> mIsForced = true);
+        scheduleFrame();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        stopRenderThread();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mSurface == null || !mSurface.isValid()) {
+            mIsScheduled.set(false);
+            return;
+        }
+        if (mIsForced || mPainter.isUpdated()) {
+            Canvas canvas = mSurface.lockHardwareCanvas();
+            canvas.drawColor(BACKGROUND_COLOR);
+            mPainter.draw(canvas);
+            mSurface.unlockCanvasAndPost(canvas);
+            mIsForced = false;
+            mChoreographer.postFrameCallback(this); // keep pulling while frames are coming
+            return;
+        }
+        mIsScheduled.set(false);
+        if (mPainter.isUpdated() && mIsScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this); // published after the check above
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    @Override
+    public void updateScreen(int[] pixels) {
+        mPainter.updateScreen(pixels);
+    }
+
+    @Override
+    public void requestRender() {
+        scheduleFrame();
+    }
+
+    @Override
+    public void requestButtonRender() {
+        scheduleFrame();
+    }
+
+    @Override
+    public void setTheme(int theme) {
+        postToRenderThread(() -> {
+            mPainter.setTheme(theme);
+            mIsForced = true;
+        });
+        scheduleFrame();
+    }
+
+    @Override
+    public void setCached(boolean isCached) {
+        postToRenderThread(() -> {
+            mPainter.setCached(isCached);
+            mIsForced = true;
+        });
+        scheduleFrame();
+    }
+
+    @Override
+    public EmulatorPainter getPainter() {
+        return mPainter;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopRenderThread();
+        mPainter.recycle();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void startRenderThread() {
+        if (mRenderThread != null) {
+            return;
+        }
+        mRenderThread = new HandlerThread("Render", Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        Handler handler = new Handler(mRenderThread.getLooper());
+        handler.post(() -> mChoreographer = Choreographer.getInstance());
+        mIsScheduled.set(false); // a request may have been lost with the former thread
+        mRenderHandler = handler;
+    }
+
+    private void stopRenderThread() {
+        if (mRenderThread == null) {
+            return;
+        }
+        runOnRenderThread(() -> stopRendering());
+        mRenderHandler = null;
+        mRenderThread.quitSafely();
+        mRenderThread = null;
+    }
+
+    /**
+     * Wakes the render thread up for the next vsync unless it's already waiting. It's called
+     * from any thread.
+     */
+    private void scheduleFrame() {
+        Handler handler = mRenderHandler;
+        if (handler != null && mIsScheduled.compareAndSet(false, true)) {
+            handler.post(mFrameScheduler);
+        }
+    }
+
+    /**
+     * Executes a task on the render thread and waits for it, or executes it immediately if
+     * the render thread isn't running.
+     */
+    private void runOnRenderThread(Runnable task) {
+        Handler handler = mRenderHandler;
+        if (handler == null) {
+            task.run();
+            return;
+        }
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        handler.post(future);
+        CommandQueue.await(future, null);
+    }
+
+    /**
+     * Executes a task on the render thread without waiting, or executes it immediately if
+     * the render thread isn't running.
+     */
+    private void postToRenderThread(Runnable task) {
+        Handler handler = mRenderHandler;
+        if (handler == null) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
+
+    private void stopRendering() {
+        if (mChoreographer != null) {
+            mChoreographer.removeFrameCallback(this);
+        }
+        mSurface = null;
+        mIsScheduled.set(false);
+    }
+
+}
@@ -62,9 +62,12 @@ public class FilePickerActivity extends AppCompatListActivity {
 
     public static final String EXT_HEX = ".hex";
     public static final String EXT_EEPROM = ".eeprom";
+    public static final String EXT_MOVIE = ".tjm";
+    public static final String EXT_SCRIPT = ".tjs";
 
     public static final String[] EXTS_FLASH = new String[] { EXT_HEX };
     public static final String[] EXTS_EEPROM = new String[] { EXT_EEPROM };
+    public static final String[] EXTS_SCRIPT = new String[] { EXT_SCRIPT };
 
     private String mDirTop;
     private String mDirCurrent;
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+/**
+ * Blends successive frames with a per-pixel exponential moving average, so that pixels which
+ * are toggled every frame to fake grey levels are shown as steady grey. The average is kept in
+ * 8.8 fixed point and nothing is allocated per frame.
+ */
+public class FrameBlender {
+
+    public static final int LEVEL_OFF       = 0;
+    public static final int LEVEL_LIGHT     = 1; // new frame weighs 1/2
+    public static final int LEVEL_STRONG    = 2; // new frame weighs 1/4
+
+    private static final int FIXED_SHIFT = 8;
+
+    private final int[] mAccum;
+    private final int[] mPixels;
+    private boolean     mIsPrimed;
+
+    /*-----------------------------------------------------------------------*/
+
+    public FrameBlender(int size) {
+        mAccum = new int[size];
+        mPixels = new int[size];
+    }
+
+    /**
+     * Discards the history, the next frame is taken as is.
+     */
+    public void reset() {
+        mIsPrimed = false;
+    }
+
+    /**
+     * Blends a frame into the average.
+     *
+     * @param pixels the frame emitted by the emulation core.
+     * @param level blending level, LEVEL_LIGHT or LEVEL_STRONG.
+     * @return true if the blended frame differs from the previous one.
+     */
+    public boolean blend(int[] pixels, int level) {
+        int[] accum = mAccum;
+        int[] blended = mPixels;
+        boolean isChanged = false;
+        if (!mIsPrimed) {
+            for (int i = 0; i < accum.length; i++) {
+                accum[i] = ((pixels[i] >> 8) & 0xFF) << FIXED_SHIFT;
+            }
+            mIsPrimed = true;
+            isChanged = true;
+        } else {
+            for (int i = 0; i < accum.length; i++) {
+                int acc = accum[i];
+                accum[i] = acc + (((((pixels[i] >> 8) & 0xFF) << FIXED_SHIFT) - acc) >> level);
+            }
+        }
+        for (int i = 0; i < accum.length; i++) {
+            int grey = (accum[i] + (1 << (FIXED_SHIFT - 1))) >> FIXED_SHIFT;
+            int pixel = 0xFF000000 | grey * 0x010101;
+            if (blended[i] != pixel) {
+                blended[i] = pixel;
+                isChanged = true;
+            }
+        }
+        return isChanged;
+    }
+
+    /**
+     * Returns the blended frame. It's overwritten by the next blend().
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+}
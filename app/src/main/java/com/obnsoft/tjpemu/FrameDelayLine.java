@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+/**
+ * Preallocated queue of frames which delays their presentation, so that a frame is shown when
+ * its sound is heard. If the delay exceeds the capacity, the oldest frames are overwritten and
+ * the delay is shortened.
+ */
+public class FrameDelayLine {
+
+    private final int[][]   mFrames;
+    private final long[]    mTimes;
+    private int     mHead;      // index of the next frame to push
+    private int     mCount;
+    private int[]   mCurrent;
+    private boolean mIsChanged;
+
+    /*-----------------------------------------------------------------------*/
+
+    public FrameDelayLine(int pixelsSize, int capacity) {
+        mFrames = new int[capacity][pixelsSize];
+        mTimes = new long[capacity];
+    }
+
+    public void clear() {
+        mCount = 0;
+        mCurrent = null;
+        mIsChanged = false;
+    }
+
+    /**
+     * Copies a frame emitted at the time into the queue.
+     */
+    public void push(int[] pixels, long time) {
+        if (mCount == mFrames.length - 1) {
+            takeOldest(); // one slot is kept for the current frame
+        }
+        int[] frame = mFrames[mHead];
+        System.arraycopy(pixels, 0, frame, 0, frame.length);
+        mTimes[mHead] = time;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount++;
+    }
+
+    /**
+     * Takes the newest frame emitted until the time.
+     *
+     * @return true if the current frame has been changed.
+     */
+    public boolean advance(long time) {
+        while (mCount > 0 && mTimes[getTail()] - time <= 0) {
+            takeOldest();
+        }
+        boolean ret = mIsChanged;
+        mIsChanged = false;
+        return ret;
+    }
+
+    /**
+     * Returns the current frame, or null if no frame is due yet.
+     */
+    public int[] getCurrent() {
+        return mCurrent;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private int getTail() {
+        return (mHead - mCount + mFrames.length) % mFrames.length;
+    }
+
+    private void takeOldest() {
+        mCurrent = mFrames[getTail()];
+        mCount--;
+        mIsChanged = true;
+    }
+}
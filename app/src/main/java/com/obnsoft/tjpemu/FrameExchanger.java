@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer between one producer and one consumer. The producer fills the back
+ * buffer and publishes it, the consumer always takes the newest published frame. Neither side
+ * ever waits for the other.
+ */
+public class FrameExchanger {
+
+    private static final int BUFFER_COUNT = 3;
+    private static final int INDEX_MASK = 0x3;
+    private static final int FLAG_FRESH = 0x4;
+
+    private final byte[][]      mBuffers = new byte[BUFFER_COUNT][];
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int                 mBack = 0;  // owned by the producer
+    private int                 mFront = 2; // owned by the consumer
+
+    private volatile long       mPublished;
+    private volatile long       mDropped;
+    private volatile long       mAcquired;
+    private volatile long       mDuplicated;
+
+    /*-----------------------------------------------------------------------*/
+
+    public FrameExchanger(int size) {
+        for (int bufferIdx = 0; bufferIdx < BUFFER_COUNT; bufferIdx++) {
+            mBuffers[bufferIdx] = new byte[size];
+        }
+    }
+
+    /**
+     * Returns the buffer which the producer may write the next frame into.
+     */
+    public byte[] getBackBuffer() {
+        return mBuffers[mBack];
+    }
+
+    /**
+     * Publishes the back buffer. If the previous frame hasn't been taken yet, it's dropped.
+     */
+    public void publish() {
+        int middle = mMiddle.getAndSet(mBack | FLAG_FRESH);
+        if ((middle & FLAG_FRESH) != 0) {
+            mDropped++;
+        }
+        mBack = middle & INDEX_MASK;
+        mPublished++;
+    }
+
+    /**
+     * Returns whether a frame has been published since the last acquire().
+     */
+    public boolean isFresh() {
+        return (mMiddle.get() & FLAG_FRESH) != 0;
+    }
+
+    /**
+     * Takes the newest published frame.
+     *
+     * @return the frame, or null if nothing has been published since the last call.
+     */
+    public byte[] acquire() {
+        if ((mMiddle.get() & FLAG_FRESH) == 0) {
+            mDuplicated++;
+            return null;
+        }
+        mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        mAcquired++;
+        return mBuffers[mFront];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "published=%d dropped=%d acquired=%d duplicated=%d",
+                mPublished, mDropped, mAcquired, mDuplicated);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Locale;
+
+/**
+ * Paces frames against an absolute nanosecond schedule. It sleeps for the bulk of the wait,
+ * then spins for the last part so that the deadline is hit precisely. The oversleep of
+ * Thread.sleep() is measured and subtracted from following sleeps.
+ */
+public class FramePacer {
+
+    private static final long ONE_SECOND_NS = 1000000000L;
+    private static final long ONE_MILLI_NS = 1000000L;
+    private static final long SPIN_NS = 1500000L; // spin for the last 1.5ms
+    private static final long OVERSLEEP_MAX_NS = 4000000L;
+    private static final int OVERSLEEP_WEIGHT = 8; // moving average 1/8
+    private static final int REBASE_FRAMES = 4; // give up catching up if late by 4 frames
+
+    private float       mFps;
+    private float       mRateScale = 1f;
+    private long        mInterval;
+    private long        mDeadline;
+    private long        mOversleep;
+    private long        mStartTime;
+    private long        mFrames;
+    private long        mRebases;
+    private FrameStats  mLateness = new FrameStats();
+
+    /*-----------------------------------------------------------------------*/
+
+    public FramePacer(float fps) {
+        reset(fps);
+    }
+
+    /**
+     * Restarts the schedule from now and clears the statistics.
+     */
+    public void reset(float fps) {
+        mFps = fps;
+        mRateScale = 1f;
+        mInterval = toInterval(fps, mRateScale);
+        mStartTime = System.nanoTime();
+        mDeadline = mStartTime + mInterval;
+        mFrames = 0;
+        mRebases = 0;
+        mLateness.reset();
+    }
+
+    /**
+     * Restarts the schedule from now keeping the statistics, e.g. after unthrottled frames.
+     */
+    public void rebase() {
+        mDeadline = System.nanoTime() + mInterval;
+    }
+
+    /**
+     * Changes the frame rate keeping the baseline. The pending deadline is moved so that the
+     * current frame is stretched or shrunk to the new interval.
+     */
+    public void setFps(float fps) {
+        mFps = fps;
+        updateInterval();
+    }
+
+    /**
+     * Scales the frame rate slightly to follow an external clock, e.g. the sound output.
+     * The scale is kept over setFps() until reset().
+     */
+    public void setRateScale(float scale) {
+        if (scale != mRateScale) {
+            mRateScale = scale;
+            updateInterval();
+        }
+    }
+
+    /**
+     * Waits until the deadline of the current frame and advances the schedule.
+     *
+     * @return lateness of the wake-up in nanoseconds.
+     */
+    public long awaitNextFrame() {
+        long deadline = mDeadline;
+        long currentTime = System.nanoTime();
+        long sleepTime = deadline - currentTime - SPIN_NS - mOversleep;
+        if (sleepTime > 0) {
+            try {
+                Thread.sleep(sleepTime / ONE_MILLI_NS, (int) (sleepTime % ONE_MILLI_NS));
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+            long oversleep = System.nanoTime() - currentTime - sleepTime;
+            oversleep = Math.max(0, Math.min(oversleep, OVERSLEEP_MAX_NS));
+            mOversleep += (oversleep - mOversleep) / OVERSLEEP_WEIGHT;
+        }
+        while ((currentTime = System.nanoTime()) < deadline) {
+            Thread.yield();
+        }
+
+        long lateness = currentTime - deadline;
+        mLateness.record(lateness);
+        mFrames++;
+        if (lateness > mInterval * REBASE_FRAMES) {
+            mDeadline = currentTime + mInterval;
+            mRebases++;
+        } else {
+            mDeadline = deadline + mInterval;
+        }
+        return lateness;
+    }
+
+    /**
+     * Returns the current frame interval in nanoseconds.
+     */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public FrameStats getLateness() {
+        return mLateness;
+    }
+
+    public float getAchievedFps() {
+        long elapsed = System.nanoTime() - mStartTime;
+        return (elapsed > 0) ? (float) (mFrames * ONE_SECOND_NS / (double) elapsed) : 0f;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "target=%.2ffps achieved=%.2ffps oversleep=%.2fms "
+                + "rebases=%d lateness: %s", (float) ONE_SECOND_NS / mInterval, getAchievedFps(),
+                mOversleep / (double) ONE_MILLI_NS, mRebases, mLateness);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void updateInterval() {
+        long interval = toInterval(mFps, mRateScale);
+        mDeadline += interval - mInterval;
+        mInterval = interval;
+    }
+
+    private static long toInterval(float fps, float scale) {
+        return (long) (ONE_SECOND_NS / (fps * scale));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds. Recording never allocates, so it can be
+ * called from the emulation loop. Readers on other threads may see slightly torn values,
+ * which is acceptable for statistics.
+ */
+public class FrameStats {
+
+    private static final long BUCKET_NS = 100000L; // 0.1ms
+    private static final int BUCKET_MAX = 1000; // up to 100ms, the last bucket is overflow
+    private static final double NS_PER_MS = 1000000.0;
+
+    private final long[] mBuckets = new long[BUCKET_MAX + 1];
+    private long    mCount;
+    private long    mSum;
+    private long    mMax;
+
+    public void record(long ns) {
+        if (ns < 0) {
+            ns = 0;
+        }
+        int bucketIdx = (int) Math.min(ns / BUCKET_NS, BUCKET_MAX);
+        mBuckets[bucketIdx]++;
+        mCount++;
+        mSum += ns;
+        if (mMax < ns) {
+            mMax = ns;
+        }
+    }
+
+    public void reset() {
+        Arrays.fill(mBuckets, 0);
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMean() {
+        return (mCount > 0) ? mSum / mCount : 0;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the upper bound of the bucket which contains the given percentile (0-100).
+     */
+    public long getPercentile(float percentile) {
+        long threshold = (long) Math.ceil(mCount * percentile / 100f);
+        long total = 0;
+        for (int bucketIdx = 0; bucketIdx <= BUCKET_MAX; bucketIdx++) {
+            total += mBuckets[bucketIdx];
+            if (total >= threshold && total > 0) {
+                return (bucketIdx < BUCKET_MAX) ? (bucketIdx + 1) * BUCKET_NS : mMax;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Counts samples which are greater than the given duration.
+     */
+    public long countOver(long ns) {
+        int startIdx = (int) Math.min(ns / BUCKET_NS + 1, BUCKET_MAX);
+        long total = 0;
+        for (int bucketIdx = startIdx; bucketIdx <= BUCKET_MAX; bucketIdx++) {
+            total += mBuckets[bucketIdx];
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "n=%d mean=%.2fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.2fms",
+                mCount, getMean() / NS_PER_MS, getPercentile(50) / NS_PER_MS,
+                getPercentile(95) / NS_PER_MS, getPercentile(99) / NS_PER_MS, mMax / NS_PER_MS);
+    }
+}
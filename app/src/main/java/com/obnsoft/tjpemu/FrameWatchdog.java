@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+
+/**
+ * Watches each call of the emulation core. The emulation worker marks the entry and the exit
+ * of every frame, and the UI thread polls them periodically. A frame which is still running
+ * over the budget is reported as stalled, and a finished one over the budget as slow.
+ * Reports are appended to a file in the application's files directory.
+ * <p>
+ * The listener is told about slow frames only when they are sustained, so that a single
+ * hiccup such as a garbage collection doesn't interrupt the user.
+ */
+public class FrameWatchdog {
+
+    public interface Listener {
+        void onFrameOverBudget(boolean isStalled, String report);
+    }
+
+    public static final String REPORT_FILE_NAME = "stall.log";
+
+    private static final long ONE_MILLISECOND_NS = 1000000L;
+    private static final long CHECK_INTERVAL_MIN = 50; // milliseconds
+    private static final long SLOW_WINDOW = 10000; // milliseconds
+    private static final int SLOW_FRAMES_SUSTAINED = 3; // in the window
+    private static final String TIME_FORMAT = "yyyy-MM-dd kk:mm:ss";
+    private static final String[] BUTTON_NAMES = { "Up", "Down", "Left", "Right", "A" };
+
+    private final Context   mContext;
+    private final Handler   mHandler;
+    private Listener        mListener;
+    private volatile long   mBudget;        // nanoseconds, 0 means disabled
+    private volatile String mRomPath;
+    private volatile long   mEntryTime;     // 0 while outside of the core
+    private volatile long   mFrameNumber;
+    private volatile int    mInputState;
+    private volatile long   mSlowFrames;
+    private volatile long   mSlowFrameNumber;
+    private volatile long   mSlowDuration;
+    private volatile int    mSlowInputState;
+    private volatile long   mStalls;
+    private long            mReportedEntryTime; // accessed by the UI thread only
+    private long            mReportedSlowFrames;
+    private long            mSlowWindowStart;
+    private long            mSlowWindowFrames;
+    private boolean         mIsArmed;
+    private boolean         mIsNotified;
+
+    private final Runnable  mChecker = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    /*-----------------------------------------------------------------------*/
+
+    public FrameWatchdog(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the time budget of a frame in milliseconds, 0 disables the watchdog.
+     */
+    public void setBudget(int budget) {
+        mBudget = budget * ONE_MILLISECOND_NS;
+        if (mIsArmed) {
+            disarm();
+            arm();
+        }
+    }
+
+    public void setRomPath(String path) {
+        mRomPath = path;
+    }
+
+    /**
+     * Starts polling. It must be called by the UI thread.
+     */
+    public void arm() {
+        mIsArmed = true;
+        mIsNotified = false;
+        mReportedSlowFrames = mSlowFrames;
+        mSlowWindowFrames = 0;
+        mHandler.removeCallbacks(mChecker);
+        if (mBudget > 0) {
+            mHandler.postDelayed(mChecker, getCheckInterval());
+        }
+    }
+
+    /**
+     * Stops polling. It must be called by the UI thread.
+     */
+    public void disarm() {
+        mIsArmed = false;
+        mHandler.removeCallbacks(mChecker);
+    }
+
+    /**
+     * Marks the entry into the core. It's called by the emulation worker.
+     */
+    public void enter(long frameNumber, int inputState) {
+        mFrameNumber = frameNumber;
+        mInputState = inputState;
+        mEntryTime = System.nanoTime();
+    }
+
+    /**
+     * Marks the exit from the core. It's called by the emulation worker.
+     *
+     * @return the time spent in the core in nanoseconds.
+     */
+    public long exit() {
+        long duration = System.nanoTime() - mEntryTime;
+        mEntryTime = 0;
+        long budget = mBudget;
+        if (budget > 0 && duration > budget) {
+            mSlowFrameNumber = mFrameNumber;
+            mSlowDuration = duration;
+            mSlowInputState = mInputState;
+            mSlowFrames++;
+        }
+        return duration;
+    }
+
+    /**
+     * Returns whether the core has been running over the budget and hasn't returned yet.
+     */
+    public boolean isStalled() {
+        long entryTime = mEntryTime;
+        long budget = mBudget;
+        return (budget > 0 && entryTime != 0 && System.nanoTime() - entryTime > budget);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "budget=%dms stalls=%d slow=%d",
+                mBudget / ONE_MILLISECOND_NS, mStalls, mSlowFrames);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private long getCheckInterval() {
+        return Math.max(mBudget / ONE_MILLISECOND_NS / 2, CHECK_INTERVAL_MIN);
+    }
+
+    private void check() {
+        if (!mIsArmed) {
+            return;
+        }
+        long entryTime = mEntryTime;
+        if (isStalled() && entryTime == mEntryTime && entryTime != mReportedEntryTime) {
+            mReportedEntryTime = entryTime;
+            mStalls++;
+            notifyOverBudget(true, buildReport("Stalled", mFrameNumber,
+                    System.nanoTime() - entryTime, mInputState), true);
+        } else if (mSlowFrames != mReportedSlowFrames) {
+            long count = mSlowFrames - mReportedSlowFrames;
+            mReportedSlowFrames += count;
+            notifyOverBudget(false, buildReport(String.format(Locale.US, "Slow (x%d)", count),
+                    mSlowFrameNumber, mSlowDuration, mSlowInputState), isSustained(count));
+        }
+        mHandler.postDelayed(mChecker, getCheckInterval());
+    }
+
+    private String buildReport(String kind, long frameNumber, long duration, int inputState) {
+        StringBuilder input = new StringBuilder();
+        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+            if ((inputState & (1 << buttonIdx)) != 0) {
+                input.append(BUTTON_NAMES[buttonIdx]).append(' ');
+            }
+        }
+        return String.format(Locale.US,
+                "%s: %s\nROM: %s\nFrame: %d\nDuration: %.1fms\nInput: %s\n",
+                DateFormat.format(TIME_FORMAT, Calendar.getInstance()), kind, mRomPath,
+                frameNumber, duration / (double) ONE_MILLISECOND_NS,
+                (input.length() > 0) ? input.toString().trim() : "-");
+    }
+
+    /**
+     * Counts slow frames in a window of time.
+     *
+     * @return true if enough slow frames have occurred in the current window.
+     */
+    private boolean isSustained(long count) {
+        long currentTime = SystemClock.uptimeMillis();
+        if (mSlowWindowFrames == 0 || currentTime - mSlowWindowStart > SLOW_WINDOW) {
+            mSlowWindowStart = currentTime;
+            mSlowWindowFrames = 0;
+        }
+        mSlowWindowFrames += count;
+        return (mSlowWindowFrames >= SLOW_FRAMES_SUSTAINED);
+    }
+
+    private void notifyOverBudget(boolean isStalled, String report, boolean isNotifiable) {
+        writeReport(report);
+        if (isNotifiable && !mIsNotified && mListener != null) {
+            mIsNotified = true;
+            mListener.onFrameOverBudget(isStalled, report);
+        }
+    }
+
+    private void writeReport(String report) {
+        File file = new File(mContext.getFilesDir(), REPORT_FILE_NAME);
+        try (Writer out = new FileWriter(file, true)) {
+            out.write(report);
+            out.write('\n');
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -31,7 +31,8 @@ public class GifEncoder {
     private static final int WIDTH = 128;
     private static final int HEIGHT = 64;
     private static final int PIXELS = WIDTH * HEIGHT;
-    private static final int DELAY = 3; // frame delay (hundredths)
+    private static final int FRAME_RATE = 30; // timeline of frames (fps)
+    private static final int DELAY_MAX = 0xFFFF; // frame delay limit (hundredths)
     private static final byte[] PALETTE = new byte[] { 0, 0, 0, -1, -1, -1 };
     private static final int COLOR_DEPTH = 1; // color depth
     private static final int PAL_SIZE = 0; // palette size (bits-1)
@@ -40,6 +41,10 @@ public class GifEncoder {
     private OutputStream mWorkStream;
     private boolean mIsStarted = false; // ready to output frames
     private boolean mIsFirstFrame = true;
+    private byte[] mPendingPixels = new byte[PIXELS];
+    private boolean mIsPending = false; // the pending frame hasn't been written yet
+    private long mFrameCount; // frames on the timeline, including the pending one
+    private long mWrittenDelay; // hundredths already written
 
     /**
      * Initiates GIF file creation.
@@ -56,6 +61,9 @@ public class GifEncoder {
             writeHeader(mWorkStream); // header
             mIsStarted = true;
             mIsFirstFrame = true;
+            mIsPending = false;
+            mFrameCount = 0;
+            mWrittenDelay = 0;
         } catch (IOException e) {
             e.printStackTrace();
             mWorkFile = null;
@@ -83,9 +91,10 @@ public class GifEncoder {
                 writeApplicationExtension(mWorkStream); // application extension
                 mIsFirstFrame = false;
             }
-            byte[] indexedPixels = analyzePixels(pixels); // build map pixels
-            writeGraphicCtrlExt(mWorkStream); // write graphic control extension
-            writeImageBlock(mWorkStream, indexedPixels); // write image block
+            writePendingFrame(mWorkStream); // write previous frame with its delay
+            analyzePixels(pixels, mPendingPixels); // build map pixels
+            mIsPending = true;
+            mFrameCount++;
             ret = true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -94,6 +103,29 @@ public class GifEncoder {
         return ret;
     }
 
+    /**
+     * Extends the delay of the last frame by one frame instead of adding an identical frame.
+     *
+     * @return true if successful.
+     */
+    public boolean repeatFrame() {
+        if (!mIsStarted || !mIsPending) {
+            return false;
+        }
+        boolean ret = false;
+        mFrameCount++;
+        try {
+            if (getPendingDelay() >= DELAY_MAX) {
+                writePendingFrame(mWorkStream); // the delay field is full, so split it
+                mIsPending = true;
+            }
+            ret = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ret;
+    }
+
     /**
      * Flushes any pending data and closes output file.
      */
@@ -103,6 +135,7 @@ public class GifEncoder {
         }
         boolean ret = false;
         try {
+            writePendingFrame(mWorkStream); // last frame
             writeTrailer(mWorkStream); // gif trailer
             mWorkStream.close();
             mWorkFile.renameTo(file);
@@ -130,7 +163,8 @@ public class GifEncoder {
             writeHeader(out); // header
             writeLSD(out); // logical screen descriptor
             writePalette(out); // global color table
-            byte[] indexedPixels = analyzePixels(pixels); // build map pixels
+            byte[] indexedPixels = new byte[PIXELS];
+            analyzePixels(pixels, indexedPixels); // build map pixels
             writeImageBlock(out, indexedPixels); // write image block
             writeTrailer(out); // gif trailer
             out.close();
@@ -145,15 +179,34 @@ public class GifEncoder {
     /**
      * Analyzes image colors and creates color map.
      */
-    private byte[] analyzePixels(int[] pixels) {
-        byte[] indexedPixels = new byte[PIXELS];
+    private void analyzePixels(int[] pixels, byte[] indexedPixels) {
         for (int i = 0; i < PIXELS; i++) {
             int c = pixels[i];
             int r = (c >> 16) & 0xFF, g = (c >> 8) & 0xFF, b = c & 0xFF;
             boolean isWhite = ((306 * r + 601 * g + 117 * b) >= 512);
             indexedPixels[i] = (byte) (isWhite ? 1 : 0);
         }
-        return indexedPixels;
+    }
+
+    /**
+     * Returns the delay of the pending frame, keeping the fraction on the timeline
+     */
+    private int getPendingDelay() {
+        return (int) (mFrameCount * 100 / FRAME_RATE - mWrittenDelay);
+    }
+
+    /**
+     * Writes the pending frame with its accumulated delay
+     */
+    private void writePendingFrame(OutputStream out) throws IOException {
+        if (!mIsPending) {
+            return;
+        }
+        int delay = getPendingDelay();
+        writeGraphicCtrlExt(out, delay); // write graphic control extension
+        writeImageBlock(out, mPendingPixels); // write image block
+        mWrittenDelay += delay;
+        mIsPending = false;
     }
 
     /**
@@ -204,7 +257,7 @@ public class GifEncoder {
     /**
      * Writes Graphic Control Extension
      */
-    private void writeGraphicCtrlExt(OutputStream out) throws IOException {
+    private void writeGraphicCtrlExt(OutputStream out, int delay) throws IOException {
         out.write(0x21); // extension introducer
         out.write(0xf9); // GCE label
         out.write(4); // data block size
@@ -215,7 +268,7 @@ public class GifEncoder {
                 0 | // 7 user input = 0 (none)
                 0); // 8 transparency flag = 0 (none)
 
-        writeShort(out, DELAY); // delay x 1/100 sec
+        writeShort(out, delay); // delay x 1/100 sec
         out.write(0); // transparent color index = 0
         out.write(0); // block terminator
     }
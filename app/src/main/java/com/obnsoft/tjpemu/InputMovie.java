@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Button masks of every frame from a reset, with hashes of the screen as checkpoints. It's
+ * either recorded or played back by the emulation worker, one frame at a time.
+ * <p>
+ * The file consists of a header which holds the CRC32 of the flash image and the EEPROM at
+ * the reset, followed by records of a tag, the number of frames since the previous record as
+ * a varint, and a payload. Only the frames where the mask changed are recorded.
+ */
+public class InputMovie {
+
+    public static final int CHECKPOINT_INTERVAL = 60; // frames
+
+    private static final int MAGIC = 0x544A504D; // "TJPM"
+    private static final int VERSION = 1;
+    private static final int TAG_INPUT      = 0;
+    private static final int TAG_CHECKPOINT = 1;
+    private static final int TAG_END        = 2;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private boolean         mIsPlaying;
+    private final int       mRomCrc;
+    private final byte[]    mEeprom;
+    private int[]   mInputFrames = new int[INITIAL_CAPACITY];
+    private int[]   mInputMasks = new int[INITIAL_CAPACITY];
+    private int     mInputCount;
+    private int[]   mCheckFrames = new int[INITIAL_CAPACITY];
+    private int[]   mCheckHashes = new int[INITIAL_CAPACITY];
+    private int     mCheckCount;
+    private int     mFrameCount;
+
+    private int     mFrame;         // cursor of recording or playback
+    private int     mInputIdx;
+    private int     mCheckIdx;
+    private int     mMask;
+    private int     mDivergedFrame = -1;
+    private int     mMismatches;
+
+    /*-----------------------------------------------------------------------*/
+
+    private InputMovie(boolean isPlaying, int romCrc, byte[] eeprom) {
+        mIsPlaying = isPlaying;
+        mRomCrc = romCrc;
+        mEeprom = eeprom;
+    }
+
+    /**
+     * Starts a recording, which must begin right after a reset of the core.
+     */
+    public static InputMovie newRecording(int romCrc, byte[] eeprom) {
+        return new InputMovie(false, romCrc, eeprom.clone());
+    }
+
+    /**
+     * Loads a recording to play it back.
+     */
+    public static InputMovie load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not an input movie");
+            }
+            int romCrc = in.readInt();
+            byte[] eeprom = new byte[in.readUnsignedShort()];
+            in.readFully(eeprom);
+            InputMovie movie = new InputMovie(true, romCrc, eeprom);
+            int frame = 0;
+            while (true) {
+                int tag = in.readUnsignedByte();
+                frame += readVarint(in);
+                if (tag == TAG_INPUT) {
+                    movie.addInput(frame, in.readUnsignedByte());
+                } else if (tag == TAG_CHECKPOINT) {
+                    movie.addCheckpoint(frame, in.readInt());
+                } else if (tag == TAG_END) {
+                    movie.mFrameCount = frame;
+                    break;
+                } else {
+                    throw new IOException("Unknown tag " + tag);
+                }
+            }
+            return movie;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(mRomCrc);
+            out.writeShort(mEeprom.length);
+            out.write(mEeprom);
+            int frameCount = getFrameCount();
+            int frame = 0;
+            int checkIdx = 0;
+            for (int inputIdx = 0; inputIdx <= mInputCount; inputIdx++) {
+                int nextFrame = (inputIdx < mInputCount) ? mInputFrames[inputIdx] : frameCount;
+                for (; checkIdx < mCheckCount && mCheckFrames[checkIdx] < nextFrame; checkIdx++) {
+                    out.writeByte(TAG_CHECKPOINT);
+                    writeVarint(out, mCheckFrames[checkIdx] - frame);
+                    out.writeInt(mCheckHashes[checkIdx]);
+                    frame = mCheckFrames[checkIdx];
+                }
+                if (inputIdx < mInputCount) {
+                    out.writeByte(TAG_INPUT);
+                    writeVarint(out, nextFrame - frame);
+                    out.writeByte(mInputMasks[inputIdx]);
+                    frame = nextFrame;
+                }
+            }
+            out.writeByte(TAG_END);
+            writeVarint(out, frameCount - frame);
+        }
+    }
+
+    public boolean isPlaying() {
+        return mIsPlaying;
+    }
+
+    public int getRomCrc() {
+        return mRomCrc;
+    }
+
+    public byte[] getEeprom() {
+        return mEeprom;
+    }
+
+    /**
+     * Returns the current frame of recording or playback.
+     */
+    public int getFrame() {
+        return mFrame;
+    }
+
+    public int getFrameCount() {
+        return (mIsPlaying) ? mFrameCount : mFrame;
+    }
+
+    public int getCheckpointCount() {
+        return mCheckCount;
+    }
+
+    /**
+     * Returns the first frame whose checkpoint didn't match, or -1 if there is none.
+     */
+    public int getDivergedFrame() {
+        return mDivergedFrame;
+    }
+
+    public int getMismatches() {
+        return mMismatches;
+    }
+
+    public boolean isFinished() {
+        return mIsPlaying && mFrame >= mFrameCount;
+    }
+
+    /**
+     * Takes the button mask of the current frame. A recording logs the given mask, and a
+     * playback returns the recorded one instead.
+     */
+    public int nextInput(int mask) {
+        if (mIsPlaying) {
+            while (mInputIdx < mInputCount && mInputFrames[mInputIdx] <= mFrame) {
+                mMask = mInputMasks[mInputIdx++];
+            }
+            return mMask;
+        }
+        if (mask != mMask) {
+            addInput(mFrame, mask);
+            mMask = mask;
+        }
+        return mask;
+    }
+
+    /**
+     * Finishes the current frame. A recording takes a checkpoint at every interval, and a
+     * playback verifies it.
+     */
+    public void endFrame(int[] pixels) {
+        if (mIsPlaying) {
+            while (mCheckIdx < mCheckCount && mCheckFrames[mCheckIdx] < mFrame) {
+                mCheckIdx++;
+            }
+            if (mCheckIdx < mCheckCount && mCheckFrames[mCheckIdx] == mFrame) {
+                if (mCheckHashes[mCheckIdx] != hash(pixels)) {
+                    if (mDivergedFrame < 0) {
+                        mDivergedFrame = mFrame;
+                    }
+                    mMismatches++;
+                }
+                mCheckIdx++;
+            }
+        } else if (mFrame % CHECKPOINT_INTERVAL == 0) {
+            addCheckpoint(mFrame, hash(pixels));
+        }
+        mFrame++;
+    }
+
+    /**
+     * Turns a playback into a recording which continues from the current frame.
+     */
+    public void continueRecording() {
+        while (mInputCount > 0 && mInputFrames[mInputCount - 1] >= mFrame) {
+            mInputCount--;
+        }
+        while (mCheckCount > 0 && mCheckFrames[mCheckCount - 1] >= mFrame) {
+            mCheckCount--;
+        }
+        mMask = (mInputCount > 0) ? mInputMasks[mInputCount - 1] : 0;
+        mIsPlaying = false;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void addInput(int frame, int mask) {
+        if (mInputCount == mInputFrames.length) {
+            mInputFrames = Arrays.copyOf(mInputFrames, mInputCount * 2);
+            mInputMasks = Arrays.copyOf(mInputMasks, mInputCount * 2);
+        }
+        mInputFrames[mInputCount] = frame;
+        mInputMasks[mInputCount] = mask;
+        mInputCount++;
+    }
+
+    private void addCheckpoint(int frame, int hash) {
+        if (mCheckCount == mCheckFrames.length) {
+            mCheckFrames = Arrays.copyOf(mCheckFrames, mCheckCount * 2);
+            mCheckHashes = Arrays.copyOf(mCheckHashes, mCheckCount * 2);
+        }
+        mCheckFrames[mCheckCount] = frame;
+        mCheckHashes[mCheckCount] = hash;
+        mCheckCount++;
+    }
+
+    private static int hash(int[] pixels) {
+        int hash = FNV_OFFSET;
+        for (int pixel : pixels) {
+            hash = (hash ^ pixel) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import android.util.SparseIntArray;
+import android.view.KeyEvent;
+
+/**
+ * Assignment of the key codes of keyboards and gamepads to the buttons of the emulator and to
+ * the fast forward. A key code is assigned to one button at most, the latest assignment wins.
+ */
+public class KeyBindings {
+
+    public static final int TURBO       = Native.BUTTON_MAX;
+    public static final int BINDING_MAX = Native.BUTTON_MAX + 1;
+
+    private static final int[][] DEFAULT_KEY_CODES = {
+        { KeyEvent.KEYCODE_DPAD_UP, KeyEvent.KEYCODE_W },
+        { KeyEvent.KEYCODE_DPAD_DOWN, KeyEvent.KEYCODE_S },
+        { KeyEvent.KEYCODE_DPAD_LEFT, KeyEvent.KEYCODE_A },
+        { KeyEvent.KEYCODE_DPAD_RIGHT, KeyEvent.KEYCODE_D },
+        { KeyEvent.KEYCODE_BUTTON_A, KeyEvent.KEYCODE_BUTTON_B, KeyEvent.KEYCODE_DPAD_CENTER,
+                KeyEvent.KEYCODE_SPACE, KeyEvent.KEYCODE_Z, KeyEvent.KEYCODE_X },
+        { KeyEvent.KEYCODE_TAB, KeyEvent.KEYCODE_BUTTON_R1 },
+    };
+
+    private static final String KEYCODE_PREFIX = "KEYCODE_";
+    private static final String SEPARATOR = ",";
+
+    private final int[][]           mKeyCodes = new int[BINDING_MAX][];
+    private final SparseIntArray    mButtonMap = new SparseIntArray();
+
+    /*-----------------------------------------------------------------------*/
+
+    public KeyBindings() {
+        for (int buttonIdx = 0; buttonIdx < BINDING_MAX; buttonIdx++) {
+            setKeyCodes(buttonIdx, null);
+        }
+    }
+
+    /**
+     * Assigns key codes to a button, null restores the default ones.
+     *
+     * @return the bit mask of the other buttons which the key codes have been taken from.
+     */
+    public int setKeyCodes(int buttonIdx, int[] keyCodes) {
+        if (keyCodes == null) {
+            keyCodes = DEFAULT_KEY_CODES[buttonIdx];
+        }
+        int[] oldKeyCodes = mKeyCodes[buttonIdx];
+        if (oldKeyCodes != null) {
+            for (int keyCode : oldKeyCodes) {
+                if (mButtonMap.get(keyCode, -1) == buttonIdx) {
+                    mButtonMap.delete(keyCode);
+                }
+            }
+        }
+        int takenMask = 0;
+        for (int keyCode : keyCodes) {
+            int ownerIdx = mButtonMap.get(keyCode, -1);
+            if (ownerIdx >= 0 && ownerIdx != buttonIdx) {
+                mKeyCodes[ownerIdx] = remove(mKeyCodes[ownerIdx], keyCode);
+                takenMask |= 1 << ownerIdx;
+            }
+            mButtonMap.put(keyCode, buttonIdx);
+        }
+        mKeyCodes[buttonIdx] = keyCodes;
+        return takenMask;
+    }
+
+    public int[] getKeyCodes(int buttonIdx) {
+        return mKeyCodes[buttonIdx];
+    }
+
+    /**
+     * Returns the button assigned to a key code, {@link #TURBO}, or -1 if there is none.
+     */
+    public int getButton(int keyCode) {
+        return mButtonMap.get(keyCode, -1);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Parses key codes stored in the shared preferences.
+     *
+     * @return the key codes, or null if the string is null or malformed.
+     *         An empty string means that all the key codes have been taken by other buttons.
+     */
+    public static int[] parse(String str) {
+        if (str == null) {
+            return null;
+        }
+        if (str.isEmpty()) {
+            return new int[0];
+        }
+        String[] tokens = str.split(SEPARATOR);
+        int[] keyCodes = new int[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                keyCodes[i] = Integer.parseInt(tokens[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return keyCodes;
+    }
+
+    public static String format(int[] keyCodes) {
+        StringBuilder buf = new StringBuilder();
+        for (int keyCode : keyCodes) {
+            if (buf.length() > 0) {
+                buf.append(SEPARATOR);
+            }
+            buf.append(keyCode);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the human readable names of key codes, e.g. "DPAD_UP, W".
+     */
+    public static String describe(int[] keyCodes) {
+        StringBuilder buf = new StringBuilder();
+        for (int keyCode : keyCodes) {
+            if (buf.length() > 0) {
+                buf.append(", ");
+            }
+            String name = KeyEvent.keyCodeToString(keyCode);
+            if (name.startsWith(KEYCODE_PREFIX)) {
+                name = name.substring(KEYCODE_PREFIX.length());
+            }
+            buf.append(name);
+        }
+        return buf.toString();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static int[] remove(int[] keyCodes, int keyCode) {
+        int count = 0;
+        for (int code : keyCodes) {
+            if (code != keyCode) {
+                count++;
+            }
+        }
+        int[] newKeyCodes = new int[count];
+        int idx = 0;
+        for (int code : keyCodes) {
+            if (code != keyCode) {
+                newKeyCodes[idx++] = code;
+            }
+        }
+        return newKeyCodes;
+    }
+}
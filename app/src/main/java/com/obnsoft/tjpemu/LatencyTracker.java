@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the latency from an input event to the core, to the first frame which changed
+ * after it, and to the drawing of that frame. The durations are aggregated for each pair of
+ * the fps preset and the renderer.
+ * <p>
+ * Event times are given in milliseconds of SystemClock.uptimeMillis(), which runs on the same
+ * monotonic clock as System.nanoTime() on Android. Only one input is tracked at a time, the
+ * inputs arriving while it's on the way are ignored.
+ */
+public class LatencyTracker {
+
+    private static final int STAGE_CORE     = 0;
+    private static final int STAGE_FRAME    = 1;
+    private static final int STAGE_DRAW     = 2;
+    private static final int STAGE_MAX      = 3;
+
+    private static final String[] STAGE_NAMES = { "to core", "to frame", "to draw" };
+    private static final long ONE_MILLISECOND_NS = 1000000L;
+    private static final long EXPIRY_NS = 1000000000L; // the input changed nothing
+
+    private final Map<String, FrameStats[]> mStatsMap = new LinkedHashMap<>();
+    private volatile FrameStats[]   mStats;
+    private float                   mFps;
+    private String                  mRenderer;
+    private final AtomicLong mInputTime = new AtomicLong();     // marked by the UI thread
+    private final AtomicLong mPresentedTime = new AtomicLong(); // handed to the renderer
+    private long    mCoreTime;  // accessed by the emulation worker only
+    private long    mFrameTime;
+
+    /*-----------------------------------------------------------------------*/
+
+    public LatencyTracker() {
+        select(0f, null);
+    }
+
+    public void setFps(float fps) {
+        select(fps, mRenderer);
+    }
+
+    public void setRenderer(String renderer) {
+        select(mFps, renderer);
+    }
+
+    /**
+     * Marks an input event which changed the buttons. It's called by the UI thread.
+     */
+    public void markInput(long eventTime) {
+        mInputTime.compareAndSet(0, eventTime * ONE_MILLISECOND_NS);
+    }
+
+    /**
+     * Marks the time when the buttons were fed into the core. It's called by the emulation
+     * worker every frame.
+     */
+    public void onCoreInput(long time) {
+        long inputTime = mInputTime.getAndSet(0);
+        if (inputTime != 0 && mCoreTime == 0 && mFrameTime == 0) {
+            mStats[STAGE_CORE].record(time - inputTime);
+            mCoreTime = inputTime;
+        }
+    }
+
+    /**
+     * Marks the exit from the core. It's called by the emulation worker every frame.
+     */
+    public void onFrame(long time, boolean isChanged) {
+        if (mFrameTime != 0 && time - mFrameTime > EXPIRY_NS) {
+            mFrameTime = 0; // no renderer is bound
+        }
+        long inputTime = mCoreTime;
+        if (inputTime != 0) {
+            if (isChanged) {
+                mStats[STAGE_FRAME].record(time - inputTime);
+                mFrameTime = inputTime;
+                mCoreTime = 0;
+            } else if (time - inputTime > EXPIRY_NS) {
+                mCoreTime = 0;
+            }
+        }
+    }
+
+    /**
+     * Marks that a frame is handed over to the renderer. It's called by the emulation worker.
+     */
+    public void onPresent() {
+        if (mFrameTime != 0) {
+            mPresentedTime.set(mFrameTime);
+            mFrameTime = 0;
+        }
+    }
+
+    /**
+     * Marks that a new frame has been drawn. It's called by the renderer.
+     */
+    public void onDrawn(long time) {
+        long inputTime = mPresentedTime.getAndSet(0);
+        if (inputTime != 0) {
+            mStats[STAGE_DRAW].record(time - inputTime);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        synchronized (mStatsMap) {
+            for (Map.Entry<String, FrameStats[]> entry : mStatsMap.entrySet()) {
+                FrameStats[] stats = entry.getValue();
+                if (stats[STAGE_CORE].getCount() == 0) {
+                    continue;
+                }
+                buf.append("Latency (").append(entry.getKey()).append("):\n");
+                for (int stageIdx = 0; stageIdx < STAGE_MAX; stageIdx++) {
+                    buf.append("  ").append(STAGE_NAMES[stageIdx]).append(": ")
+                            .append(stats[stageIdx]).append('\n');
+                }
+            }
+        }
+        return (buf.length() > 0) ? buf.toString() : "Latency: -\n";
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void select(float fps, String renderer) {
+        mFps = fps;
+        mRenderer = renderer;
+        String label = ((fps == (int) fps) ? String.valueOf((int) fps) : String.valueOf(fps))
+                + "fps, " + renderer;
+        synchronized (mStatsMap) {
+            FrameStats[] stats = mStatsMap.get(label);
+            if (stats == null) {
+                stats = new FrameStats[STAGE_MAX];
+                for (int stageIdx = 0; stageIdx < STAGE_MAX; stageIdx++) {
+                    stats[stageIdx] = new FrameStats();
+                }
+                mStatsMap.put(label, stats);
+            }
+            mStats = stats;
+        }
+    }
+}
@@ -19,23 +19,36 @@
 package com.obnsoft.tjpemu;
 
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
 import java.util.Locale;
 
 import com.obnsoft.tjpemu.MyAsyncTaskWithDialog.Result;
 import com.obnsoft.tjpemu.Utils.ResultHandler;
 
+import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Intent;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.format.DateFormat;
+import android.view.InputDevice;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.RelativeLayout;
 import android.widget.Spinner;
+import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
@@ -43,15 +56,33 @@ import androidx.appcompat.widget.Toolbar;
 public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_OPEN_FLASH = 1;
+    private static final int REQUEST_OPEN_SCRIPT = 2;
+    private static final int SPEED_REFRESH_INTERVAL = 500; // milliseconds
+    private static final float AXIS_THRESHOLD = 0.5f;
+    private static final int REPLAY_POLL_INTERVAL = 100; // milliseconds
+    private static final int REPLAY_PROGRESS_MAX = 100;
+    private static final String SLOT_TIME_FORMAT = "yyyy-MM-dd kk:mm:ss";
 
     private MyApplication       mApp;
     private TJPEmulator         mTJPEmulator;
     private EmulatorScreenView  mEmulatorScreenView;
+    private EmulatorSurfaceView mEmulatorSurfaceView;
+    private EmulatorScreen      mEmulatorScreen;
     private RelativeLayout      mLayoutToolbar;
     private Spinner             mSpinnerToolFps;
     private ImageButton         mButtonToolCaptureMovie;
+    private Button              mButtonToolTurbo;
+    private TextView            mTextToolSpeed;
+    private KeyBindings         mKeyBindings;
     private String              mCurrentPath;
 
+    private final Runnable      mSpeedRefresher = new Runnable() {
+        @Override
+        public void run() {
+            refreshSpeedText();
+        }
+    };
+
     /*-----------------------------------------------------------------------*/
 
     @Override
@@ -65,9 +96,12 @@ public class MainActivity extends AppCompatActivity {
         mTJPEmulator = mApp.getTJPEmulator();
 
         mEmulatorScreenView = findViewById(R.id.emulatorScreenView);
+        mEmulatorSurfaceView = findViewById(R.id.emulatorSurfaceView);
         mLayoutToolbar = findViewById(R.id.relativeLayoutToolBar);
         mSpinnerToolFps = findViewById(R.id.spinnerToolFps);
         mButtonToolCaptureMovie = findViewById(R.id.buttonToolCaptureMovie);
+        mButtonToolTurbo = findViewById(R.id.buttonToolTurbo);
+        mTextToolSpeed = findViewById(R.id.textToolSpeed);
 
         mSpinnerToolFps.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -80,6 +114,18 @@ public class MainActivity extends AppCompatActivity {
                 // do nothing
             }
         });
+        setupTurboButton();
+        mTJPEmulator.getFrameWatchdog().setListener(
+                (isStalled, report) -> showOverBudgetDialog(isStalled, report));
+        mTJPEmulator.setMovieListener(report -> {
+            refreshSpeedText();
+            Utils.showMessageDialog(this, R.string.menuMovie, report, null);
+        });
+        mTJPEmulator.setScriptListener((isPassed, report) -> {
+            refreshSpeedText();
+            Utils.showMessageDialog(this, (isPassed) ? R.string.messageScriptPassed
+                    : R.string.messageScriptFailed, report, null);
+        });
 
         Intent intent = getIntent();
         if (intent != null) {
@@ -116,6 +162,30 @@ public class MainActivity extends AppCompatActivity {
         } else if (id == R.id.menuMainSettings) {
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
+        } else if (id == R.id.menuMainQuickSave || id == R.id.menuMainQuickLoad) {
+            showQuickSlotMenu(id == R.id.menuMainQuickSave);
+            return true;
+        } else if (id == R.id.menuMainMovie) {
+            showMovieMenu();
+            return true;
+        } else if (id == R.id.menuMainScript) {
+            if (mTJPEmulator.isRunningScript()) {
+                if (!mTJPEmulator.stopScript()) {
+                    Utils.showToast(this, R.string.messageBusy);
+                }
+            } else {
+                Intent intent = new Intent(this, FilePickerActivity.class);
+                intent.putExtra(FilePickerActivity.INTENT_EXTRA_EXTENSIONS,
+                        FilePickerActivity.EXTS_SCRIPT);
+                intent.putExtra(FilePickerActivity.INTENT_EXTRA_WRITEMODE, false);
+                intent.putExtra(FilePickerActivity.INTENT_EXTRA_DIRECTORY, mApp.getPathFlash());
+                startActivityForResult(intent, REQUEST_OPEN_SCRIPT);
+            }
+            return true;
+        } else if (id == R.id.menuMainStatistics) {
+            Utils.showMessageDialog(this, R.string.menuStatistics,
+                    mTJPEmulator.getStatistics(), null);
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -131,6 +201,11 @@ public class MainActivity extends AppCompatActivity {
                     startEmulation(path);
                 }
                 break;
+            case REQUEST_OPEN_SCRIPT:
+                if (resultCode == RESULT_OK) {
+                    startScript(data.getStringExtra(FilePickerActivity.INTENT_EXTRA_SELECTPATH));
+                }
+                break;
         }
     }
 
@@ -144,12 +219,76 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        /*  Bound keys are taken before the focused view, so that they are never consumed by
+            the focus navigation of the tool bar. */
+        int buttonIdx = (mKeyBindings != null) ? mKeyBindings.getButton(event.getKeyCode()) : -1;
+        if (buttonIdx >= 0) {
+            int action = event.getAction();
+            if (event.getRepeatCount() == 0
+                    && (action == KeyEvent.ACTION_DOWN || action == KeyEvent.ACTION_UP)) {
+                if (buttonIdx == KeyBindings.TURBO) {
+                    setTurbo(action == KeyEvent.ACTION_DOWN);
+                } else {
+                    mTJPEmulator.getButtonInput().setKey(buttonIdx,
+                            action == KeyEvent.ACTION_DOWN);
+                    mTJPEmulator.getLatencyTracker().markInput(event.getEventTime());
+                    requestButtonRender();
+                }
+            }
+            return true;
+        }
+        return super.dispatchKeyEvent(event);
+    }
+
+    @Override
+    public boolean onGenericMotionEvent(MotionEvent event) {
+        if (event.isFromSource(InputDevice.SOURCE_JOYSTICK)
+                && event.getActionMasked() == MotionEvent.ACTION_MOVE) {
+            ButtonInput buttonInput = mTJPEmulator.getButtonInput();
+            boolean isChanged = false;
+            for (int pos = 0; pos < event.getHistorySize(); pos++) {
+                int mask = getAxisMask(
+                        event.getHistoricalAxisValue(MotionEvent.AXIS_HAT_X, pos),
+                        event.getHistoricalAxisValue(MotionEvent.AXIS_HAT_Y, pos),
+                        event.getHistoricalAxisValue(MotionEvent.AXIS_X, pos),
+                        event.getHistoricalAxisValue(MotionEvent.AXIS_Y, pos));
+                isChanged |= (buttonInput.setAxisMask(mask) != mask);
+            }
+            int mask = getAxisMask(
+                    event.getAxisValue(MotionEvent.AXIS_HAT_X),
+                    event.getAxisValue(MotionEvent.AXIS_HAT_Y),
+                    event.getAxisValue(MotionEvent.AXIS_X),
+                    event.getAxisValue(MotionEvent.AXIS_Y));
+            isChanged |= (buttonInput.setAxisMask(mask) != mask);
+            if (isChanged) {
+                mTJPEmulator.getLatencyTracker().markInput(event.getEventTime());
+                requestButtonRender();
+            }
+            return true;
+        }
+        return super.onGenericMotionEvent(event);
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (!hasFocus) {
+            // the key-up events will go to another window
+            mTJPEmulator.getButtonInput().releaseKeys();
+            requestButtonRender();
+        }
+    }
+
     @Override
     protected void onPause() {
+        setTurbo(false);
         if (mTJPEmulator.isCapturing()) {
             mTJPEmulator.stopCapturing();
         }
         mTJPEmulator.stopEmulation();
+        mTextToolSpeed.removeCallbacks(mSpeedRefresher);
         super.onPause();
     }
 
@@ -159,24 +298,41 @@ public class MainActivity extends AppCompatActivity {
         mLayoutToolbar.setVisibility((mApp.getShowToolbar()) ? View.VISIBLE : View.INVISIBLE);
         mSpinnerToolFps.setSelection(mApp.getEmulationFpsItemPos(), false);
         refreshCaptureVideoButtonColor();
-        mTJPEmulator.bindEmulatorView(mEmulatorScreenView);
+        boolean isSurface = mApp.getSurfaceRenderer();
+        mEmulatorScreenView.setVisibility((isSurface) ? View.GONE : View.VISIBLE);
+        mEmulatorSurfaceView.setVisibility((isSurface) ? View.VISIBLE : View.GONE);
+        mEmulatorScreen = (isSurface) ? mEmulatorSurfaceView : mEmulatorScreenView;
+        mEmulatorScreen.setCached(mApp.getLayerCache());
+        mEmulatorScreen.setTheme(mApp.getScreenTheme());
+        mKeyBindings = mApp.getKeyBindings();
+        mTJPEmulator.bindEmulatorView(mEmulatorScreen);
         if (!mTJPEmulator.isEmulating()) {
             mTJPEmulator.startEmulation();
         }
+        refreshSpeedText();
     }
 
     @Override
     protected void onDestroy() {
         mTJPEmulator.bindEmulatorView(null);
+        mTJPEmulator.getFrameWatchdog().setListener(null);
+        mTJPEmulator.setMovieListener(null);
+        mTJPEmulator.setScriptListener(null);
         mTJPEmulator.finishEmulation();
         mEmulatorScreenView.onDestroy();
+        mEmulatorSurfaceView.onDestroy();
         Utils.cleanCacheFiles(this);
         super.onDestroy();
     }
 
     public void onClickReset(View v) {
-        if (mTJPEmulator.isEmulating()) {
-            startEmulation(mCurrentPath);
+        if (mCurrentPath != null) {
+            if (mTJPEmulator.resetEmulation()) {
+                mTJPEmulator.startEmulation();
+                refreshSpeedText();
+            } else {
+                startEmulation(mCurrentPath);
+            }
         }
     }
 
@@ -203,11 +359,234 @@ public class MainActivity extends AppCompatActivity {
         if (path != null && mTJPEmulator.initializeEmulation(path)) {
             mCurrentPath = path;
             mTJPEmulator.startEmulation();
+            refreshSpeedText();
         } else {
             Utils.showToast(this, R.string.messageEmulateFailed);
         }
     }
 
+    private void pauseEmulation() {
+        if (mTJPEmulator.isCapturing() && !mTJPEmulator.getFrameWatchdog().isStalled()) {
+            mTJPEmulator.stopCapturing();
+            refreshCaptureVideoButtonColor();
+        }
+        mTJPEmulator.stopEmulation();
+        refreshSpeedText();
+    }
+
+    private void showOverBudgetDialog(boolean isStalled, String report) {
+        int messageId = (isStalled) ? R.string.messageStalled : R.string.messageSlow;
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.prefsWatchdog)
+                .setMessage(String.format(getString(messageId), report))
+                .setNegativeButton(R.string.menuPause, (dialog, which) -> pauseEmulation())
+                .setNeutralButton(android.R.string.cancel, null);
+        if (isStalled) {
+            builder.setPositiveButton(R.string.menuRestart, (dialog, which) -> restartApp());
+        } else {
+            builder.setPositiveButton(R.string.menuReset, (dialog, which) -> onClickReset(null));
+        }
+        builder.show();
+    }
+
+    /**
+     * Restarts the whole process, since the emulation worker can't be released while it's
+     * stuck in the core. The EEPROM since the last pause is lost.
+     */
+    private void restartApp() {
+        startActivity(Intent.makeRestartActivityTask(getComponentName()));
+        Runtime.getRuntime().exit(0);
+    }
+
+    private void showQuickSlotMenu(final boolean isSave) {
+        if (mCurrentPath == null || mTJPEmulator.isReplaying()) {
+            return;
+        }
+        String[] items = new String[TJPEmulator.QUICK_SLOT_MAX];
+        for (int slot = 0; slot < items.length; slot++) {
+            long time = mTJPEmulator.getQuickSlotTime(slot);
+            items[slot] = String.format(getString(R.string.labelQuickSlot), slot + 1,
+                    (time > 0) ? DateFormat.format(SLOT_TIME_FORMAT, time)
+                            : getString(R.string.labelQuickSlotEmpty));
+        }
+        Utils.showListDialog(this, (isSave) ? R.string.menuQuickSave : R.string.menuQuickLoad,
+                items, (dialog, which) -> {
+                    if (isSave) {
+                        Utils.showToast(this, (mTJPEmulator.quickSave(which))
+                                ? R.string.messageQuickSaved : R.string.messageQuickSaveFailed);
+                    } else {
+                        quickLoad(which);
+                    }
+                });
+    }
+
+    private void quickLoad(int slot) {
+        if (!mTJPEmulator.quickLoad(slot)) {
+            Utils.showToast(this, R.string.messageQuickLoadFailed);
+            return;
+        }
+        mTJPEmulator.startEmulation();
+        refreshSpeedText();
+        final ProgressDialog progressDialog = new ProgressDialog(this);
+        progressDialog.setMessage(getText(R.string.messageQuickLoading));
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setMax(REPLAY_PROGRESS_MAX);
+        progressDialog.setCancelable(false);
+        progressDialog.show();
+        mTextToolSpeed.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mTJPEmulator.isReplaying() && mTJPEmulator.isEmulating()) {
+                    progressDialog.setProgress(
+                            (int) (mTJPEmulator.getReplayProgress() * REPLAY_PROGRESS_MAX));
+                    mTextToolSpeed.postDelayed(this, REPLAY_POLL_INTERVAL);
+                    return;
+                }
+                progressDialog.dismiss();
+                if (!mTJPEmulator.isReplaying()) {
+                    Utils.showToast(MainActivity.this, mTJPEmulator.getReplayReport());
+                }
+            }
+        });
+    }
+
+    private void startScript(String path) {
+        ScriptRunner script;
+        try (Reader reader = new FileReader(path)) {
+            script = ScriptRunner.parse(reader);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Utils.showToast(this, R.string.messageScriptFailed);
+            return;
+        } catch (ParseException e) {
+            Utils.showMessageDialog(this, R.string.messageScriptFailed, e.getMessage(), null);
+            return;
+        }
+        if (mTJPEmulator.startScript(script)) {
+            refreshSpeedText();
+            Utils.showToast(this, R.string.messageScriptRunning);
+        } else {
+            Utils.showToast(this, R.string.messageScriptFailed);
+        }
+    }
+
+    private void showMovieMenu() {
+        if (mCurrentPath == null) {
+            return;
+        }
+        final int[] itemIds;
+        if (mTJPEmulator.isRecordingMovie()) {
+            itemIds = new int[] { R.string.menuMovieStopRecording };
+        } else if (mTJPEmulator.isPlayingMovie()) {
+            itemIds = new int[] { R.string.menuMovieStopPlaying };
+        } else {
+            itemIds = new int[] { R.string.menuMovieRecord, R.string.menuMoviePlay,
+                    R.string.menuMoviePlayUnthrottled };
+        }
+        String[] items = new String[itemIds.length];
+        for (int i = 0; i < itemIds.length; i++) {
+            items[i] = getString(itemIds[i]);
+        }
+        Utils.showListDialog(this, R.string.menuMovie, items,
+                (dialog, which) -> handleMovieMenu(itemIds[which]));
+    }
+
+    private void handleMovieMenu(int itemId) {
+        if (itemId == R.string.menuMovieRecord) {
+            if (mTJPEmulator.startRecordingMovie()) {
+                mTJPEmulator.startEmulation();
+                refreshSpeedText();
+                Utils.showToast(this, R.string.messageMovieRecording);
+            } else {
+                Utils.showToast(this, R.string.messageMovieFailed);
+            }
+        } else if (itemId == R.string.menuMovieStopRecording) {
+            File file = mTJPEmulator.stopRecordingMovie();
+            if (file != null) {
+                Utils.showToast(this,
+                        String.format(getString(R.string.messageMovieSaved), file.getName()));
+            } else {
+                Utils.showToast(this, R.string.messageMovieFailed);
+            }
+        } else if (itemId == R.string.menuMoviePlay
+                || itemId == R.string.menuMoviePlayUnthrottled) {
+            if (mTJPEmulator.startPlayingMovie(itemId == R.string.menuMoviePlayUnthrottled)) {
+                mTJPEmulator.startEmulation();
+                refreshSpeedText();
+            } else {
+                Utils.showToast(this, R.string.messageMovieFailed);
+            }
+        } else if (itemId == R.string.menuMovieStopPlaying) {
+            if (!mTJPEmulator.stopPlayingMovie()) {
+                Utils.showToast(this, R.string.messageBusy);
+            }
+        }
+    }
+
+    @SuppressLint("ClickableViewAccessibility")
+    private void setupTurboButton() {
+        mButtonToolTurbo.setOnTouchListener((v, event) -> {
+            switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                setTurbo(true);
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                setTurbo(false);
+                break;
+            }
+            return false;
+        });
+    }
+
+    private int getAxisMask(float hatX, float hatY, float x, float y) {
+        float valueX = (Math.abs(hatX) >= Math.abs(x)) ? hatX : x;
+        float valueY = (Math.abs(hatY) >= Math.abs(y)) ? hatY : y;
+        int mask = 0;
+        if (valueX <= -AXIS_THRESHOLD) {
+            mask |= 1 << Native.BUTTON_LEFT;
+        } else if (valueX >= AXIS_THRESHOLD) {
+            mask |= 1 << Native.BUTTON_RIGHT;
+        }
+        if (valueY <= -AXIS_THRESHOLD) {
+            mask |= 1 << Native.BUTTON_UP;
+        } else if (valueY >= AXIS_THRESHOLD) {
+            mask |= 1 << Native.BUTTON_DOWN;
+        }
+        return mask;
+    }
+
+    private void requestButtonRender() {
+        if (mEmulatorScreen != null) {
+            mEmulatorScreen.requestButtonRender();
+        }
+    }
+
+    private void setTurbo(boolean isTurbo) {
+        boolean wasTurbo = mTJPEmulator.isTurbo();
+        mTJPEmulator.setTurbo(TJPEmulator.TURBO_BY_USER, isTurbo);
+        if (mTJPEmulator.isTurbo() != wasTurbo) {
+            refreshSpeedText();
+        }
+    }
+
+    private void refreshSpeedText() {
+        mTextToolSpeed.removeCallbacks(mSpeedRefresher);
+        int level = mTJPEmulator.getDegradationLevel();
+        if (mTJPEmulator.isTurbo()) {
+            mTextToolSpeed.setText(String.format(getString(R.string.labelSpeed),
+                    mTJPEmulator.getSpeed()));
+        } else if (level > 0) {
+            mTextToolSpeed.setText(String.format(getString(R.string.labelDegradation),
+                    mTJPEmulator.getSpeed(), level));
+        } else {
+            mTextToolSpeed.setText(null);
+        }
+        if (mTJPEmulator.isEmulating()) {
+            mTextToolSpeed.postDelayed(mSpeedRefresher, SPEED_REFRESH_INTERVAL);
+        }
+    }
+
     private void handleIntent(Intent intent) {
         String action = intent.getAction();
         Uri uri = intent.getData();
@@ -31,15 +31,39 @@ public class MyApplication extends Application {
     private static final String PREFS_KEY_TOOLBAR       = "toolbar";
     private static final String PREFS_KEY_FPS           = "fps";
     private static final String PREFS_KEY_REFRESH       = "refresh";
+    private static final String PREFS_KEY_GOVERNOR      = "governor";
+    private static final String PREFS_KEY_BOOST         = "boost";
+    private static final String PREFS_KEY_PITCH         = "preserve_pitch";
+    private static final String PREFS_KEY_AUDIOCLOCK    = "audio_clock";
+    private static final String PREFS_KEY_WATCHDOG      = "watchdog";
+    private static final String PREFS_KEY_RENDERER      = "renderer";
+    private static final String PREFS_KEY_LAYERCACHE    = "layer_cache";
+    private static final String PREFS_KEY_THEME         = "theme";
+    private static final String PREFS_KEY_BLEND         = "blend";
+    private static final String PREFS_KEY_BLENDCAPTURE  = "blend_capture";
     private static final String PREFS_KEY_CONFIRMQUIT   = "confirm_quit";
+    private static final String[] PREFS_KEY_BINDINGS    =
+            { "key_up", "key_down", "key_left", "key_right", "key_a", "key_turbo" };
     private static final String PREFS_KEY_PATH_FLASH    = "path_flash";
     private static final String PREFS_KEY_PATH_EEPROM   = "path_eeprom";
 
     private static final boolean PREFS_DEFAULT_TOOLBAR  = false;
     private static final String PREFS_DEFAULT_FPS       = "30";
     private static final boolean PREFS_DEFAULT_REFRESH  = false;
+    private static final boolean PREFS_DEFAULT_GOVERNOR = true;
+    private static final boolean PREFS_DEFAULT_BOOST    = true;
+    private static final boolean PREFS_DEFAULT_PITCH    = false;
+    private static final boolean PREFS_DEFAULT_AUDIOCLOCK = false;
+    private static final String PREFS_DEFAULT_WATCHDOG  = "1000";
+    private static final String PREFS_DEFAULT_RENDERER  = "view";
+    private static final boolean PREFS_DEFAULT_LAYERCACHE = true;
+    private static final String PREFS_DEFAULT_THEME     = "0";
+    private static final String PREFS_DEFAULT_BLEND     = "0";
+    private static final boolean PREFS_DEFAULT_BLENDCAPTURE = false;
     private static final boolean PREFS_DEFAULT_CONFIRMQUIT = true;
 
+    private static final String RENDERER_SURFACE        = "surface";
+
     private TJPEmulator     mTJPEmulator;
 
     /*-----------------------------------------------------------------------*/
@@ -91,10 +115,99 @@ public class MyApplication extends Application {
         return getSharedPreferences().getBoolean(PREFS_KEY_REFRESH, PREFS_DEFAULT_REFRESH);
     }
 
+    public boolean getSpeedGovernor() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_GOVERNOR, PREFS_DEFAULT_GOVERNOR);
+    }
+
+    public boolean getPerformanceBoost() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_BOOST, PREFS_DEFAULT_BOOST);
+    }
+
+    public boolean getPreservePitch() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_PITCH, PREFS_DEFAULT_PITCH);
+    }
+
+    public boolean getAudioClock() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_AUDIOCLOCK, PREFS_DEFAULT_AUDIOCLOCK);
+    }
+
+    /**
+     * Returns the time budget of a frame for the watchdog in milliseconds, 0 means disabled.
+     */
+    public int getWatchdogBudget() {
+        return Integer.parseInt(
+                getSharedPreferences().getString(PREFS_KEY_WATCHDOG, PREFS_DEFAULT_WATCHDOG));
+    }
+
+    /**
+     * Returns whether the emulator is rendered on a SurfaceView by its own render thread.
+     */
+    public boolean getSurfaceRenderer() {
+        return RENDERER_SURFACE.equals(
+                getSharedPreferences().getString(PREFS_KEY_RENDERER, PREFS_DEFAULT_RENDERER));
+    }
+
+    public boolean getLayerCache() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_LAYERCACHE, PREFS_DEFAULT_LAYERCACHE);
+    }
+
+    /**
+     * Returns the colour theme of the OLED screen, one of EmulatorPainter.THEME_*.
+     */
+    public int getScreenTheme() {
+        return Integer.parseInt(
+                getSharedPreferences().getString(PREFS_KEY_THEME, PREFS_DEFAULT_THEME));
+    }
+
+    /**
+     * Returns the level of temporal frame blending, one of FrameBlender.LEVEL_*.
+     */
+    public int getBlendLevel() {
+        return Integer.parseInt(
+                getSharedPreferences().getString(PREFS_KEY_BLEND, PREFS_DEFAULT_BLEND));
+    }
+
+    public boolean getBlendCapture() {
+        return getSharedPreferences().getBoolean(
+                PREFS_KEY_BLENDCAPTURE, PREFS_DEFAULT_BLENDCAPTURE);
+    }
+
     public boolean getConfirmQuit() {
         return getSharedPreferences().getBoolean(PREFS_KEY_CONFIRMQUIT, PREFS_DEFAULT_CONFIRMQUIT);
     }
 
+    /**
+     * Returns the assignment of keys to the buttons, where unassigned buttons have the default.
+     */
+    public KeyBindings getKeyBindings() {
+        SharedPreferences sharedPrefs = getSharedPreferences();
+        KeyBindings keyBindings = new KeyBindings();
+        for (int buttonIdx = 0; buttonIdx < KeyBindings.BINDING_MAX; buttonIdx++) {
+            String value = sharedPrefs.getString(PREFS_KEY_BINDINGS[buttonIdx], null);
+            keyBindings.setKeyCodes(buttonIdx, KeyBindings.parse(value));
+        }
+        return keyBindings;
+    }
+
+    /**
+     * Assigns key codes to a button, null restores the default ones.
+     * The key codes are also removed from the other buttons which have had them.
+     */
+    public boolean setKeyBinding(int buttonIdx, int[] keyCodes) {
+        KeyBindings keyBindings = getKeyBindings();
+        int takenMask = keyBindings.setKeyCodes(buttonIdx, keyCodes);
+        SharedPreferences.Editor editor = getSharedPreferences().edit();
+        for (int idx = 0; idx < KeyBindings.BINDING_MAX; idx++) {
+            if ((takenMask & 1 << idx) != 0) {
+                editor.putString(PREFS_KEY_BINDINGS[idx],
+                        KeyBindings.format(keyBindings.getKeyCodes(idx)));
+            }
+        }
+        editor.putString(PREFS_KEY_BINDINGS[buttonIdx],
+                (keyCodes != null) ? KeyBindings.format(keyCodes) : null);
+        return editor.commit();
+    }
+
     public String getPathFlash() {
         SharedPreferences sharedPrefs = getSharedPreferences();
         String path = sharedPrefs.getString(PREFS_KEY_PATH_FLASH, null);
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PerformanceHintManager;
+import android.os.Process;
+
+/**
+ * Raises the priority of the calling thread and, where the platform supports it, reports the
+ * actual work duration of each frame to the performance hint API so that the CPU governor can
+ * boost clocks in time. All methods must be called by the thread being boosted.
+ */
+public class PerformanceBooster {
+
+    private final Context   mContext;
+    private final int       mPriority;
+    private Object          mSession; // PerformanceHintManager.Session on Android 12 or later
+    private long            mTarget;
+
+    /*-----------------------------------------------------------------------*/
+
+    public PerformanceBooster(Context context, int priority) {
+        mContext = context;
+        mPriority = priority;
+    }
+
+    /**
+     * Starts boosting the calling thread.
+     *
+     * @param target target work duration of a frame in nanoseconds, or 0 not to use hints.
+     */
+    public void start(long target) {
+        Process.setThreadPriority(mPriority);
+        if (target > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            PerformanceHintManager manager =
+                    mContext.getSystemService(PerformanceHintManager.class);
+            if (manager != null) {
+                mSession = manager.createHintSession(new int[] { Process.myTid() }, target);
+                mTarget = target;
+            }
+        }
+    }
+
+    public void setTarget(long target) {
+        if (mSession != null && mTarget != target
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            ((PerformanceHintManager.Session) mSession).updateTargetWorkDuration(target);
+            mTarget = target;
+        }
+    }
+
+    public void report(long duration) {
+        if (mSession != null && duration > 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            ((PerformanceHintManager.Session) mSession).reportActualWorkDuration(duration);
+        }
+    }
+
+    /**
+     * Stops boosting and restores the default priority of the calling thread.
+     */
+    public void stop() {
+        if (mSession != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            ((PerformanceHintManager.Session) mSession).close();
+        }
+        mSession = null;
+        mTarget = 0;
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runner of an automation script, which drives the buttons and watches the screen frame by
+ * frame on the emulation worker. A script has one command per line, and '#' starts a comment.
+ * <pre>
+ * press BUTTON [FRAMES]    press a button for FRAMES frames (1 by default)
+ * hold BUTTON              keep a button pressed
+ * release [BUTTON]         release a button, or all of them
+ * wait FRAMES              let frames go by
+ * match X Y W H BITS [TIMEOUT]     wait until a region of the screen equals the bits
+ * waithash HASH [TIMEOUT]          wait until the hash of the screen equals HASH
+ * assert X Y W H BITS      fail unless a region of the screen equals the bits
+ * assert hash HASH         fail unless the hash of the screen equals HASH
+ * capture                  take a screenshot
+ * dump [X Y W H]           log the hash of the screen, or the bits of a region
+ * </pre>
+ * BUTTON is one of up, down, left, right and a. BITS are the pixels of the region row by row
+ * in hexadecimal, where the most significant bit is the leftmost lit pixel.
+ * <p>
+ * The screen is packed into two longs per row once a frame, so that a region is compared by
+ * a few masked XORs per row.
+ */
+public class ScriptRunner {
+
+    public static final int TIMEOUT_DEFAULT = 3600; // frames
+
+    private static final int OP_HOLD        = 0;
+    private static final int OP_RELEASE     = 1;
+    private static final int OP_WAIT        = 2;
+    private static final int OP_MATCH       = 3;
+    private static final int OP_WAIT_HASH   = 4;
+    private static final int OP_ASSERT      = 5;
+    private static final int OP_ASSERT_HASH = 6;
+    private static final int OP_CAPTURE     = 7;
+    private static final int OP_DUMP        = 8;
+    private static final int OP_DUMP_HASH   = 9;
+
+    private static final String[] BUTTON_NAMES = { "up", "down", "left", "right", "a" };
+    private static final int WIDTH = TJPEmulator.SCREEN_WIDTH;
+    private static final int HEIGHT = TJPEmulator.SCREEN_HEIGHT;
+    private static final int WORDS_PER_ROW = WIDTH / Long.SIZE;
+    private static final int LIT_THRESHOLD = 0x80;
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private static class Region {
+        final int   y;
+        final int   h;
+        final long[] masks = new long[WORDS_PER_ROW];
+        final long[] bits;
+
+        Region(int x, int y, int w, int h) {
+            this.y = y;
+            this.h = h;
+            bits = new long[h * WORDS_PER_ROW];
+            for (int col = x; col < x + w; col++) {
+                masks[col / Long.SIZE] |= 1L << (Long.SIZE - 1 - col % Long.SIZE);
+            }
+        }
+
+        boolean matches(long[] screen) {
+            for (int row = 0; row < h; row++) {
+                int screenIdx = (y + row) * WORDS_PER_ROW;
+                int bitsIdx = row * WORDS_PER_ROW;
+                for (int word = 0; word < WORDS_PER_ROW; word++) {
+                    if (((screen[screenIdx + word] ^ bits[bitsIdx + word]) & masks[word]) != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Command {
+        final int       op;
+        final int       lineNumber;
+        final int       arg;    // button mask, frames or timeout
+        final long      hash;
+        final Region    region;
+
+        Command(int op, int lineNumber, int arg, long hash, Region region) {
+            this.op = op;
+            this.lineNumber = lineNumber;
+            this.arg = arg;
+            this.hash = hash;
+            this.region = region;
+        }
+    }
+
+    private final List<Command> mCommands;
+    private final long[]    mScreen = new long[HEIGHT * WORDS_PER_ROW];
+    private final StringBuilder mLog = new StringBuilder();
+    private int     mCommandIdx;
+    private int     mCount;     // frames left of wait, or of timeout
+    private int     mMask;
+    private int     mFrame;
+    private boolean mIsFailed;
+    private boolean mIsCaptureRequested;
+
+    /*-----------------------------------------------------------------------*/
+
+    private ScriptRunner(List<Command> commands) {
+        mCommands = commands;
+        mCount = -1;
+    }
+
+    /**
+     * Parses a script.
+     *
+     * @throws ParseException with the line number as the error offset.
+     */
+    public static ScriptRunner parse(Reader reader) throws IOException, ParseException {
+        List<Command> commands = new ArrayList<>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int commentPos = line.indexOf('#');
+            if (commentPos >= 0) {
+                line = line.substring(0, commentPos);
+            }
+            String[] tokens = line.trim().toLowerCase(Locale.US).split("\\s+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+            try {
+                parseCommand(tokens, lineNumber, commands);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new ParseException("Line " + lineNumber + ": " + line.trim(), lineNumber);
+            }
+        }
+        return new ScriptRunner(commands);
+    }
+
+    public int getFrame() {
+        return mFrame;
+    }
+
+    public boolean isFinished() {
+        return mIsFailed || mCommandIdx >= mCommands.size();
+    }
+
+    public boolean isFailed() {
+        return mIsFailed;
+    }
+
+    /**
+     * Returns the messages of failures and dumps.
+     */
+    public String getLog() {
+        return mLog.toString();
+    }
+
+    /**
+     * Returns whether a screenshot has been requested since the last call.
+     */
+    public boolean takeCaptureRequest() {
+        boolean ret = mIsCaptureRequested;
+        mIsCaptureRequested = false;
+        return ret;
+    }
+
+    /**
+     * Executes the commands which don't wait, and returns the button mask of the frame.
+     * The assertions are evaluated against the screen of the previous frame.
+     */
+    public int nextInput() {
+        while (!isFinished()) {
+            Command command = mCommands.get(mCommandIdx);
+            switch (command.op) {
+            case OP_HOLD:
+                mMask |= command.arg;
+                break;
+            case OP_RELEASE:
+                mMask &= ~command.arg;
+                break;
+            case OP_ASSERT:
+                if (!command.region.matches(mScreen)) {
+                    fail(command, "assertion failed");
+                }
+                break;
+            case OP_ASSERT_HASH:
+                if (hashScreen() != command.hash) {
+                    fail(command, String.format(Locale.US, "hash %016x", hashScreen()));
+                }
+                break;
+            case OP_CAPTURE:
+                mIsCaptureRequested = true;
+                break;
+            case OP_DUMP:
+                dumpRegion(command);
+                break;
+            case OP_DUMP_HASH:
+                log(command, String.format(Locale.US, "hash %016x", hashScreen()));
+                break;
+            default:
+                if (mCount < 0) {
+                    mCount = command.arg;
+                }
+                return mMask; // wait for frames
+            }
+            mCommandIdx++;
+        }
+        return mMask;
+    }
+
+    /**
+     * Observes the screen emitted by the core, and advances the waiting command.
+     */
+    public void endFrame(int[] pixels) {
+        pack(pixels);
+        mFrame++;
+        if (isFinished() || mCount < 0) {
+            return;
+        }
+        Command command = mCommands.get(mCommandIdx);
+        boolean isDone;
+        switch (command.op) {
+        case OP_MATCH:
+            isDone = command.region.matches(mScreen);
+            break;
+        case OP_WAIT_HASH:
+            isDone = (hashScreen() == command.hash);
+            break;
+        default:
+            isDone = false;
+            break;
+        }
+        mCount--;
+        if (isDone || (command.op == OP_WAIT && mCount <= 0)) {
+            mCommandIdx++;
+            mCount = -1;
+        } else if (mCount <= 0) {
+            fail(command, "timed out");
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static void parseCommand(String[] tokens, int lineNumber, List<Command> commands) {
+        String name = tokens[0];
+        if ("press".equals(name)) {
+            int mask = parseButton(tokens[1]);
+            int frames = (tokens.length > 2) ? parsePositive(tokens[2]) : 1;
+            commands.add(new Command(OP_HOLD, lineNumber, mask, 0, null));
+            commands.add(new Command(OP_WAIT, lineNumber, frames, 0, null));
+            commands.add(new Command(OP_RELEASE, lineNumber, mask, 0, null));
+        } else if ("hold".equals(name)) {
+            commands.add(new Command(OP_HOLD, lineNumber, parseButton(tokens[1]), 0, null));
+        } else if ("release".equals(name)) {
+            int mask = (tokens.length > 1) ? parseButton(tokens[1]) : ButtonInput.MASK_ALL;
+            commands.add(new Command(OP_RELEASE, lineNumber, mask, 0, null));
+        } else if ("wait".equals(name)) {
+            commands.add(new Command(OP_WAIT, lineNumber, parsePositive(tokens[1]), 0, null));
+        } else if ("match".equals(name)) {
+            int timeout = (tokens.length > 6) ? parsePositive(tokens[6]) : TIMEOUT_DEFAULT;
+            commands.add(new Command(OP_MATCH, lineNumber, timeout, 0, parseRegion(tokens, 1)));
+        } else if ("waithash".equals(name)) {
+            int timeout = (tokens.length > 2) ? parsePositive(tokens[2]) : TIMEOUT_DEFAULT;
+            commands.add(new Command(OP_WAIT_HASH, lineNumber, timeout,
+                    Long.parseUnsignedLong(tokens[1], 16), null));
+        } else if ("assert".equals(name) && "hash".equals(tokens[1])) {
+            commands.add(new Command(OP_ASSERT_HASH, lineNumber, 0,
+                    Long.parseUnsignedLong(tokens[2], 16), null));
+        } else if ("assert".equals(name)) {
+            commands.add(new Command(OP_ASSERT, lineNumber, 0, 0, parseRegion(tokens, 1)));
+        } else if ("capture".equals(name)) {
+            commands.add(new Command(OP_CAPTURE, lineNumber, 0, 0, null));
+        } else if ("dump".equals(name) && tokens.length > 1) {
+            tokens = new String[] { name, tokens[1], tokens[2], tokens[3], tokens[4], "" };
+            commands.add(new Command(OP_DUMP, lineNumber, 0, 0, parseRegion(tokens, 1)));
+        } else if ("dump".equals(name)) {
+            commands.add(new Command(OP_DUMP_HASH, lineNumber, 0, 0, null));
+        } else {
+            throw new IllegalArgumentException(name);
+        }
+    }
+
+    private static int parseButton(String token) {
+        for (int buttonIdx = 0; buttonIdx < BUTTON_NAMES.length; buttonIdx++) {
+            if (BUTTON_NAMES[buttonIdx].equals(token)) {
+                return 1 << buttonIdx;
+            }
+        }
+        throw new IllegalArgumentException(token);
+    }
+
+    private static int parsePositive(String token) {
+        int value = Integer.parseInt(token);
+        if (value <= 0) {
+            throw new IllegalArgumentException(token);
+        }
+        return value;
+    }
+
+    private static Region parseRegion(String[] tokens, int pos) {
+        int x = Integer.parseInt(tokens[pos]);
+        int y = Integer.parseInt(tokens[pos + 1]);
+        int w = parsePositive(tokens[pos + 2]);
+        int h = parsePositive(tokens[pos + 3]);
+        if (x < 0 || y < 0 || x + w > WIDTH || y + h > HEIGHT) {
+            throw new IllegalArgumentException("region");
+        }
+        Region region = new Region(x, y, w, h);
+        String hex = tokens[pos + 4];
+        if (!hex.isEmpty() && hex.length() != (w * h + 3) / 4) {
+            throw new IllegalArgumentException(hex);
+        }
+        for (int i = 0; i < hex.length() * 4 && i < w * h; i++) {
+            int nibble = Character.digit(hex.charAt(i / 4), 16);
+            if (nibble < 0) {
+                throw new IllegalArgumentException(hex);
+            }
+            if ((nibble & (8 >> (i % 4))) != 0) {
+                int col = x + i % w;
+                region.bits[(i / w) * WORDS_PER_ROW + col / Long.SIZE] |=
+                        1L << (Long.SIZE - 1 - col % Long.SIZE);
+            }
+        }
+        return region;
+    }
+
+    private void pack(int[] pixels) {
+        long[] screen = mScreen;
+        int pixelIdx = 0;
+        for (int wordIdx = 0; wordIdx < screen.length; wordIdx++) {
+            long word = 0;
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                word = (word << 1) | (((pixels[pixelIdx++] >> 8) & 0xFF) >>> 7);
+            }
+            screen[wordIdx] = word;
+        }
+    }
+
+    private long hashScreen() {
+        long hash = FNV_OFFSET;
+        for (long word : mScreen) {
+            hash = (hash ^ word) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private void dumpRegion(Command command) {
+        Region region = command.region;
+        StringBuilder hex = new StringBuilder();
+        int nibble = 0;
+        int bitCount = 0;
+        for (int row = 0; row < region.h; row++) {
+            int screenIdx = (region.y + row) * WORDS_PER_ROW;
+            for (int col = 0; col < WIDTH; col++) {
+                long bitMask = 1L << (Long.SIZE - 1 - col % Long.SIZE);
+                if ((region.masks[col / Long.SIZE] & bitMask) == 0) {
+                    continue;
+                }
+                boolean isLit = (mScreen[screenIdx + col / Long.SIZE] & bitMask) != 0;
+                nibble = (nibble << 1) | (isLit ? 1 : 0);
+                if (++bitCount % 4 == 0) {
+                    hex.append(Character.forDigit(nibble, 16));
+                    nibble = 0;
+                }
+            }
+        }
+        if (bitCount % 4 != 0) {
+            hex.append(Character.forDigit(nibble << (4 - bitCount % 4), 16));
+        }
+        log(command, hex.toString());
+    }
+
+    private void fail(Command command, String message) {
+        log(command, message);
+        mIsFailed = true;
+    }
+
+    private void log(Command command, String message) {
+        mLog.append(String.format(Locale.US, "Line %d, frame %d: %s\n",
+                command.lineNumber, mFrame, message));
+    }
+}
@@ -18,12 +18,14 @@
 
 package com.obnsoft.tjpemu;
 
+import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.net.Uri;
 import android.os.Bundle;
+import android.view.KeyEvent;
 import android.view.MenuItem;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -39,6 +41,15 @@ public class SettingsActivity extends AppCompatActivity
         implements OnSharedPreferenceChangeListener {
 
     private static final String PREFS_KEY_REFRESH   = "refresh";
+    private static final String PREFS_KEY_GOVERNOR  = "governor";
+    private static final String PREFS_KEY_BOOST     = "boost";
+    private static final String PREFS_KEY_PITCH     = "preserve_pitch";
+    private static final String PREFS_KEY_AUDIOCLOCK = "audio_clock";
+    private static final String PREFS_KEY_WATCHDOG  = "watchdog";
+    private static final String PREFS_KEY_BLEND     = "blend";
+    private static final String PREFS_KEY_BLENDCAPTURE = "blend_capture";
+    private static final String[] PREFS_KEY_BINDINGS =
+            { "key_up", "key_down", "key_left", "key_right", "key_a", "key_turbo" };
     private static final String PREFS_KEY_ABOUT     = "about";
     private static final String PREFS_KEY_LICENSE   = "license";
     private static final String PREFS_KEY_WEBSITES  = "websites";
@@ -80,6 +91,8 @@ public class SettingsActivity extends AppCompatActivity
                 mActivity.startActivity(intent);
             } else if (PREFS_KEY_WEBSITES.equals(pref.getKey())) {
                 mActivity.showUrlList();
+            } else if (getKeyBindingIndex(pref.getKey()) >= 0) {
+                mActivity.showKeyBindingDialog(getKeyBindingIndex(pref.getKey()), pref.getTitle());
             } else {
                 refreshSummary();
             }
@@ -129,11 +142,25 @@ public class SettingsActivity extends AppCompatActivity
             } else if (pref instanceof PreferenceGroup) {
                 refreshSummary((PreferenceGroup) pref);
             } else {
+                int buttonIdx = getKeyBindingIndex(key);
+                if (buttonIdx >= 0) {
+                    pref.setSummary(KeyBindings.describe(
+                            mApp.getKeyBindings().getKeyCodes(buttonIdx)));
+                }
                 pref.setOnPreferenceClickListener(this);
             }
         }
     }
 
+    private static int getKeyBindingIndex(String key) {
+        for (int buttonIdx = 0; buttonIdx < PREFS_KEY_BINDINGS.length; buttonIdx++) {
+            if (PREFS_KEY_BINDINGS[buttonIdx].equals(key)) {
+                return buttonIdx;
+            }
+        }
+        return -1;
+    }
+
 /*-----------------------------------------------------------------------*/
 
     private MyPreferenceFragment mFragment = new MyPreferenceFragment();
@@ -183,12 +210,47 @@ public class SettingsActivity extends AppCompatActivity
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         mFragment.setSummary(key);
         if (PREFS_KEY_REFRESH.equals(key)) {
-            Native.setRefreshTiming(prefs.getBoolean(PREFS_KEY_REFRESH, false));
+            mApp.getTJPEmulator().setRefreshTiming(prefs.getBoolean(PREFS_KEY_REFRESH, false));
+        } else if (PREFS_KEY_GOVERNOR.equals(key)) {
+            mApp.getTJPEmulator().setGoverned(mApp.getSpeedGovernor());
+        } else if (PREFS_KEY_BOOST.equals(key)) {
+            mApp.getTJPEmulator().setBoosted(mApp.getPerformanceBoost());
+        } else if (PREFS_KEY_PITCH.equals(key)) {
+            mApp.getTJPEmulator().setPitchPreserved(mApp.getPreservePitch());
+        } else if (PREFS_KEY_AUDIOCLOCK.equals(key)) {
+            mApp.getTJPEmulator().setAudioClocked(mApp.getAudioClock());
+        } else if (PREFS_KEY_WATCHDOG.equals(key)) {
+            mApp.getTJPEmulator().getFrameWatchdog().setBudget(mApp.getWatchdogBudget());
+        } else if (PREFS_KEY_BLEND.equals(key)) {
+            mApp.getTJPEmulator().setBlendLevel(mApp.getBlendLevel());
+        } else if (PREFS_KEY_BLENDCAPTURE.equals(key)) {
+            mApp.getTJPEmulator().setBlendCapture(mApp.getBlendCapture());
         }
     }
 
     /*-----------------------------------------------------------------------*/
 
+    protected void showKeyBindingDialog(final int buttonIdx, CharSequence buttonName) {
+        new AlertDialog.Builder(this)
+                .setTitle(buttonName)
+                .setMessage(R.string.messagePressKey)
+                .setOnKeyListener((dialog, keyCode, event) -> {
+                    if (keyCode == KeyEvent.KEYCODE_BACK || keyCode == KeyEvent.KEYCODE_MENU
+                            || event.isSystem()) {
+                        return false;
+                    }
+                    if (event.getAction() == KeyEvent.ACTION_DOWN) {
+                        mApp.setKeyBinding(buttonIdx, new int[] { keyCode });
+                        dialog.dismiss();
+                    }
+                    return true;
+                })
+                .setNeutralButton(R.string.prefsKeyDefault,
+                        (dialog, which) -> mApp.setKeyBinding(buttonIdx, null))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     protected void showUrlList() {
         final String[] items = getResources().getStringArray(R.array.bookmarkArray);
         DialogInterface.OnClickListener listener = new DialogInterface.OnClickListener() {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+/**
+ * Streaming converter of the unsigned 8-bit samples of the core into 16-bit samples at the
+ * output rate, by linear interpolation between low-pass filters against the aliasing of the
+ * square waves.
+ * <p>
+ * The input rate follows the emulation speed. The pitch either follows it too, or it's kept
+ * at the nominal rate by splicing the stream, i.e. skipping or repeating short grains with a
+ * crossfade. The splicing also absorbs the drift between the input and output rates.
+ */
+public class SoundResampler {
+
+    private static final int HISTORY_SIZE = 8192; // must be a power of two
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+    private static final int GRAIN = 512;           // input samples
+    private static final int TARGET_DELAY = GRAIN * 2;
+    private static final int CROSSFADE = 128;       // output samples
+    private static final float CUTOFF_RATIO = 0.45f;
+    private static final float GAIN = 0x7F00 / 128f;
+
+    private final int       mOutputRate;
+    private final float[]   mHistory = new float[HISTORY_SIZE];
+    private long    mWriteIndex = TARGET_DELAY;
+    private double  mReadPos;
+    private double  mFadePos;       // read position of the old grain while crossfading
+    private int     mFadeCount;
+    private double  mOutputAcc;
+
+    private float   mInputRate;
+    private double  mStep;
+    private float   mPreAlpha;
+    private float   mPostAlpha;
+    private float   mPre1;          // states of the filters
+    private float   mPre2;
+    private float   mPost1;
+    private float   mPost2;
+
+    private long    mSplices;
+
+    /*-----------------------------------------------------------------------*/
+
+    public SoundResampler(int outputRate) {
+        mOutputRate = outputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Sets the rate of the input in real time, and the rate which the pitch is based on.
+     * They are equal unless the pitch is preserved.
+     */
+    public void setRates(float inputRate, float pitchRate) {
+        if (inputRate == mInputRate && mStep == pitchRate / mOutputRate) {
+            return;
+        }
+        mInputRate = inputRate;
+        mStep = pitchRate / mOutputRate;
+        float cutoff = Math.min(pitchRate, mOutputRate) * CUTOFF_RATIO;
+        mPreAlpha = alpha(cutoff, pitchRate);
+        mPostAlpha = alpha(cutoff, mOutputRate);
+    }
+
+    /**
+     * Returns the maximum number of input samples whose output fits in outLen.
+     */
+    public int getMaxInput(int outLen) {
+        return Math.max((int) (outLen * mInputRate / mOutputRate) - 1, 1);
+    }
+
+    /**
+     * Converts samples.
+     *
+     * @return the number of output samples.
+     */
+    public int process(byte[] in, int inOffset, int inLen, short[] out, int outOffset) {
+        float[] history = mHistory;
+        float pre1 = mPre1;
+        float pre2 = mPre2;
+        float alpha = mPreAlpha;
+        long writeIndex = mWriteIndex;
+        double arrival = writeIndex;
+        for (int i = inOffset; i < inOffset + inLen; i++) {
+            float sample = (in[i] & 0xFF) - 128f;
+            pre1 += alpha * (sample - pre1);
+            pre2 += alpha * (pre1 - pre2);
+            history[(int) writeIndex++ & HISTORY_MASK] = pre2;
+        }
+        mPre1 = pre1;
+        mPre2 = pre2;
+        mWriteIndex = writeIndex;
+
+        mOutputAcc += inLen * (double) mOutputRate / mInputRate;
+        int outLen = (int) mOutputAcc;
+        mOutputAcc -= outLen;
+        double arrivalStep = (outLen > 0) ? (double) inLen / outLen : 0.0;
+        float post1 = mPost1;
+        float post2 = mPost2;
+        alpha = mPostAlpha;
+        for (int i = outOffset; i < outOffset + outLen; i++) {
+            splice(arrival);
+            arrival += arrivalStep;
+            float sample = interpolate(mReadPos);
+            mReadPos += mStep;
+            if (mFadeCount > 0) {
+                float t = (float) mFadeCount / CROSSFADE;
+                sample += (interpolate(mFadePos) - sample) * t;
+                mFadePos += mStep;
+                mFadeCount--;
+            }
+            post1 += alpha * (sample - post1);
+            post2 += alpha * (post1 - post2);
+            out[i] = (short) (post2 * GAIN);
+        }
+        mPost1 = post1;
+        mPost2 = post2;
+        return outLen;
+    }
+
+    /**
+     * Returns the number of splices so far.
+     */
+    public long getSplices() {
+        return mSplices;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Keeps the delay from the arrival of the input to the read position, where the arrival
+     * of each input sample is spread evenly over the output of the chunk.
+     */
+    private void splice(double arrival) {
+        double backlog = arrival - mReadPos;
+        int jump = 0;
+        if (backlog > TARGET_DELAY + GRAIN) {
+            jump = GRAIN;
+        } else if (backlog < TARGET_DELAY - GRAIN) {
+            jump = -GRAIN;
+        }
+        if (jump != 0 && mFadeCount == 0) {
+            mFadePos = mReadPos;
+            mFadeCount = CROSSFADE;
+            mReadPos += jump;
+            mSplices++;
+        }
+    }
+
+    private float interpolate(double pos) {
+        long index = (long) Math.floor(pos);
+        float frac = (float) (pos - index);
+        float s0 = mHistory[(int) index & HISTORY_MASK];
+        float s1 = mHistory[(int) (index + 1) & HISTORY_MASK];
+        return s0 + (s1 - s0) * frac;
+    }
+
+    private static float alpha(float cutoff, float rate) {
+        return (float) (1.0 - Math.exp(-2.0 * Math.PI * cutoff / rate));
+    }
+}
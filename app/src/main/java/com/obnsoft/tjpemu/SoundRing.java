@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of sound samples between one producer and one consumer. The producer never
+ * waits, the samples which don't fit are dropped as an overrun. The consumer may wait for the
+ * samples, and running dry after it has been fed is counted as an underrun.
+ */
+public class SoundRing {
+
+    private final byte[]    mBuffer;
+    private final int       mMask;
+    private volatile long   mWriteIndex;    // written by the producer only
+    private volatile long   mReadIndex;     // written by the consumer only
+    private volatile Thread mWaiter;
+    private volatile boolean mIsWoken;
+    private boolean         mIsFed;         // accessed by the consumer only
+
+    private volatile long   mUnderruns;
+    private volatile long   mOverruns;
+    private volatile long   mDroppedBytes;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * @param capacity the size of the ring in bytes, which must be a power of two.
+     */
+    public SoundRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Returns the number of bytes which can be read.
+     */
+    public int available() {
+        return (int) (mWriteIndex - mReadIndex);
+    }
+
+    /**
+     * Appends samples. It's called by the producer.
+     *
+     * @return the number of bytes written, which is less than len on an overrun.
+     */
+    public int write(byte[] src, int offset, int len) {
+        long writeIndex = mWriteIndex;
+        int free = mBuffer.length - (int) (writeIndex - mReadIndex);
+        if (len > free) {
+            mOverruns++;
+            mDroppedBytes += len - free;
+            len = free;
+        }
+        if (len > 0) {
+            int pos = (int) writeIndex & mMask;
+            int firstLen = Math.min(len, mBuffer.length - pos);
+            System.arraycopy(src, offset, mBuffer, pos, firstLen);
+            System.arraycopy(src, offset + firstLen, mBuffer, 0, len - firstLen);
+            mWriteIndex = writeIndex + len;
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Takes samples. It's called by the consumer, and waits for the samples up to timeout.
+     *
+     * @return the number of bytes read, which is 0 if it has timed out or been woken.
+     */
+    public int read(byte[] dst, int offset, int len, long timeout) {
+        long readIndex = mReadIndex;
+        int avail = (int) (mWriteIndex - readIndex);
+        if (avail == 0) {
+            long deadline = System.nanoTime() + timeout;
+            mWaiter = Thread.currentThread();
+            while ((avail = (int) (mWriteIndex - readIndex)) == 0 && !mIsWoken) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            mWaiter = null;
+            if (mIsWoken) {
+                mIsWoken = false;
+                if (avail == 0) {
+                    return 0; // not an underrun
+                }
+            } else if (avail == 0) {
+                if (mIsFed) {
+                    mUnderruns++;
+                    mIsFed = false;
+                }
+                return 0;
+            }
+        }
+        len = Math.min(len, avail);
+        int pos = (int) readIndex & mMask;
+        int firstLen = Math.min(len, mBuffer.length - pos);
+        System.arraycopy(mBuffer, pos, dst, offset, firstLen);
+        System.arraycopy(mBuffer, 0, dst, offset + firstLen, len - firstLen);
+        mReadIndex = readIndex + len;
+        mIsFed = true;
+        return len;
+    }
+
+    /**
+     * Makes the consumer return from waiting in read() without samples, e.g. to let it notice
+     * that the stream has ended. It's called by the producer.
+     */
+    public void wake() {
+        mIsWoken = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Discards all the samples, e.g. when the output is paused. It's called by the consumer.
+     */
+    public void clear() {
+        mReadIndex = mWriteIndex;
+        mIsFed = false;
+        mIsWoken = false;
+    }
+
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    public long getOverruns() {
+        return mOverruns;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "fill=%d/%d underruns=%d overruns=%d (%d bytes)",
+                available(), mBuffer.length, mUnderruns, mOverruns, mDroppedBytes);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.util.Locale;
+
+/**
+ * Degrades the emulation step by step when the device can't sustain the target fps.
+ * Level 1 and 2 present only every 2nd or 3rd frame, and the following levels halve the
+ * emulation speed. The achieved rate is measured over a sliding window of frames.
+ */
+public class SpeedGovernor {
+
+    private static final long ONE_SECOND_NS = 1000000000L;
+    private static final int WINDOW_FRAMES = 32;
+    private static final int SKIP_LEVEL_MAX = 2;
+    private static final float FPS_MIN = 7.5f;
+    private static final float DEGRADE_RATIO = 0.92f; // degrade if slower than 92%
+    private static final float RECOVER_BUSY_RATIO = 0.5f; // recover if busy less than 50%
+    private static final int RECOVER_WINDOWS = 4;
+
+    private final long[] mFrameTimes = new long[WINDOW_FRAMES];
+    private int         mFrameIdx;
+    private int         mFrameCount;
+    private long        mBusyTime;
+    private int         mSkipCount;
+    private int         mRecoverCount;
+    private float       mTargetFps;
+    private volatile int   mLevel;
+    private volatile float mAchievedFps;
+
+    /*-----------------------------------------------------------------------*/
+
+    public SpeedGovernor(float fps) {
+        reset(fps);
+    }
+
+    public void reset(float fps) {
+        mTargetFps = fps;
+        mFrameIdx = 0;
+        mFrameCount = 0;
+        mBusyTime = 0;
+        mSkipCount = 0;
+        mRecoverCount = 0;
+        mLevel = 0;
+        mAchievedFps = fps;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public float getAchievedFps() {
+        return mAchievedFps;
+    }
+
+    public float getEffectiveFps() {
+        return getEffectiveFps(mLevel);
+    }
+
+    /**
+     * Decides whether the current frame should be presented.
+     */
+    public boolean shouldPresent() {
+        if (++mSkipCount > Math.min(mLevel, SKIP_LEVEL_MAX)) {
+            mSkipCount = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a frame and reevaluates the level at the end of each window.
+     *
+     * @param frameTime start time of the frame.
+     * @param busyTime time spent for the frame except waiting.
+     * @return true if the effective fps has been changed.
+     */
+    public boolean update(long frameTime, long busyTime) {
+        int oldestIdx = (mFrameIdx + 1) % WINDOW_FRAMES;
+        mFrameTimes[mFrameIdx] = frameTime;
+        mBusyTime += busyTime;
+        mFrameIdx = oldestIdx;
+        if (++mFrameCount < WINDOW_FRAMES) {
+            return false;
+        }
+
+        float effectiveFps = getEffectiveFps();
+        long elapsed = frameTime - mFrameTimes[oldestIdx];
+        float achievedFps = (elapsed > 0)
+                ? (float) (WINDOW_FRAMES - 1) * ONE_SECOND_NS / elapsed : effectiveFps;
+        float busyRatio = mBusyTime * effectiveFps / WINDOW_FRAMES / ONE_SECOND_NS;
+        mAchievedFps = achievedFps;
+        mFrameCount = 0;
+        mBusyTime = 0;
+
+        int level = mLevel;
+        if (achievedFps < effectiveFps * DEGRADE_RATIO) {
+            if (getEffectiveFps(level + 1) >= FPS_MIN) {
+                level++;
+            }
+            mRecoverCount = 0;
+        } else if (level > 0 && busyRatio < RECOVER_BUSY_RATIO) {
+            if (++mRecoverCount >= RECOVER_WINDOWS) {
+                level--;
+                mRecoverCount = 0;
+            }
+        } else {
+            mRecoverCount = 0;
+        }
+        if (level == mLevel) {
+            return false;
+        }
+        mLevel = level;
+        return (getEffectiveFps(level) != effectiveFps);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "level=%d effective=%.2ffps achieved=%.2ffps",
+                mLevel, getEffectiveFps(), mAchievedFps);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private float getEffectiveFps(int level) {
+        return (level <= SKIP_LEVEL_MAX) ? mTargetFps : mTargetFps / (1 << (level - SKIP_LEVEL_MAX));
+    }
+}
@@ -27,17 +27,28 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
 
 import com.obnsoft.tjpemu.Utils.CancelCallback;
 
 import android.content.Context;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
+import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.media.MediaScannerConnection;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.text.format.DateFormat;
 
 public class TJPEmulator {
@@ -50,7 +61,40 @@ public class TJPEmulator {
 
     private static final int PIXELS_SIZE = SCREEN_WIDTH * SCREEN_HEIGHT;
 
-    private static final int ONE_SECOND = 1000;
+    private static final long ONE_SECOND_NS = 1000000000L;
+    private static final float NORMAL_FPS = 30f;
+    private static final long TURBO_PRESENT_INTERVAL_NS = ONE_SECOND_NS / 60;
+    private static final long SPEED_WINDOW_NS = ONE_SECOND_NS / 2;
+    private static final int SOUND_OUTPUT_RATE_DEFAULT = 48000;
+    private static final int SOUND_BURST_FRAMES_DEFAULT = 256;
+    private static final int SOUND_CAPACITY_FACTOR = 8; // of the minimum buffer size
+    private static final long SOUND_CAPACITY_MIN_NS = ONE_SECOND_NS / 4; // a frame at 7.5fps
+    private static final int FRAME_DELAY_CAPACITY = 16;
+    private static final int SOUND_RING_SIZE = SOUND_BUFFER_SIZE * 4;
+    private static final long TEARDOWN_TIMEOUT_NS = ONE_SECOND_NS;
+    private static final long TEARDOWN_POLL_NS = 100000L;
+
+    private static final String FLASH_FILE_NAME = "flash.hex";
+    private static final int FLASH_FILE_SIZE_MAX = 64 * 1024;
+    private static final CancelCallback FLASH_CALLBACK = length -> (length > FLASH_FILE_SIZE_MAX);
+    private static final String FLASH_EOF_RECORD = ":00000001FF";
+
+    public static final int TURBO_BY_USER   = 1 << 0;
+    public static final int TURBO_BY_MOVIE  = 1 << 1;
+    public static final int TURBO_BY_SCRIPT = 1 << 2;
+
+    public interface MovieListener {
+        void onPlaybackFinished(String report);
+    }
+
+    public interface ScriptListener {
+        void onScriptFinished(boolean isPassed, String report);
+    }
+
+    public static final int QUICK_SLOT_MAX = 3;
+
+    private static final String QUICK_SLOT_FILE_FORMAT = "slot%d" + FilePickerActivity.EXT_MOVIE;
+    private static final long REPLAY_SLICE_NS = ONE_SECOND_NS / 60;
 
     private static final String EEPROM_FILE_NAME = "eeprom.bin";
     private static final CancelCallback EEPROM_CALLBACK = length -> (length >= EEPROM_SIZE);
@@ -62,19 +106,73 @@ public class TJPEmulator {
             Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
             CAPTURE_DIR_NAME);
     private static final File CAPTURE_WORK_FILE = new File(CAPTURE_DIR, CAPTURE_WORK_FILE_NAME);
+    private static final String CAPTURE_SOUND_EXT = ".wav";
+    private static final File CAPTURE_WORK_SOUND_FILE =
+            new File(CAPTURE_DIR, "temp" + CAPTURE_SOUND_EXT);
 
     private MyApplication       mApp;
-    private EmulatorScreenView  mEmulatorView;
+    private volatile EmulatorScreen mEmulatorView;
+    private Handler             mHandler;
+
+    private enum State {
+        IDLE, RUNNING, PAUSED, TEARDOWN
+    }
 
+    private final AtomicReference<State> mState = new AtomicReference<>(State.IDLE);
+    private final CommandQueue mCommandQueue = new CommandQueue();
+    private boolean     mIsCoreReady; // accessed by the emulation worker only
+    private int         mCoreButtonMask; // accessed by the emulation worker only
+    private final ButtonInput mButtonInput = new ButtonInput();
+    private final LatencyTracker mLatencyTracker = new LatencyTracker();
+    private final SoundRing mSoundRing = new SoundRing(SOUND_RING_SIZE);
+    private final AudioClock mAudioClock = new AudioClock();
+    private volatile AudioBufferTuner mAudioBufferTuner;
+    private volatile InputMovie mMovie; // written by the emulation worker only
+    private volatile String mRomPath;
+    private volatile int mRomCrc;
+    private MovieListener mMovieListener;
+    private long        mMovieStartTime; // accessed by the emulation worker only
+    private volatile String mMovieReport;
+    private volatile InputMovie mSession; // journal from the last reset, written by the worker
+    private volatile InputMovie mReplay;
+    private volatile int mReplayFrame;
+    private long        mReplayStartTime; // accessed by the emulation worker only
+    private volatile String mReplayReport;
+    private volatile ScriptRunner mScript; // written by the emulation worker only
+    private ScriptListener mScriptListener;
+    private long        mScriptStartTime; // accessed by the emulation worker only
+    private volatile String mScriptReport;
     private Thread      mEmulationThread;
     private Thread      mSoundThread;
-    private boolean     mIsEmulationAvailable;
-    private boolean     mIsEmulating;
-    private boolean     mIsOneShot;
-    private boolean     mIsCapturing;
-    private float       mFps;
-    private byte[]      mEeprom;
+    private volatile boolean mIsOneShot;
+    private volatile boolean mIsCapturing;
+    private Future<Boolean> mCaptureFinishing; // accessed by the UI thread only
+    private volatile boolean mIsTurbo;
+    private int         mTurboOwners; // accessed by the UI thread only
+    private volatile float mSpeed;
+    private volatile long mTotalFrames;
+    private volatile long mUnchangedFrames;
+    private volatile long mResumeTime;
+    private volatile long mResumeLatency;
+    private volatile long mResetTime;
+    private volatile long mResetLatency;
+    private volatile float mFps;
+    private byte[]      mEeprom; // accessed by the emulation worker once it has started
+    private boolean     mIsEepromLive; // the core holds the EEPROM, accessed by the worker only
     private GifEncoder  mGifEncoder;
+    private final WavWriter mWavWriter = new WavWriter();
+    private FramePacer  mFramePacer;
+    private SpeedGovernor mSpeedGovernor;
+    private FrameWatchdog mFrameWatchdog;
+    private FrameBlender mFrameBlender = new FrameBlender(PIXELS_SIZE);
+    private volatile int mBlendLevel;
+    private volatile boolean mIsBlendCapture;
+    private volatile boolean mIsGoverned;
+    private volatile boolean mIsBoosted;
+    private volatile boolean mIsPitchPreserved;
+    private volatile boolean mIsAudioClocked;
+    private final FrameStats mNormalWorkStats = new FrameStats();
+    private final FrameStats mBoostedWorkStats = new FrameStats();
 
     /*-----------------------------------------------------------------------*/
     /*                              Emulation                                */
@@ -82,168 +180,821 @@ public class TJPEmulator {
 
     public TJPEmulator(MyApplication app) {
         mApp = app;
+        mHandler = new Handler(Looper.getMainLooper());
         loadEeprom();
         mGifEncoder = new GifEncoder();
+        mFps = app.getEmulationFps();
+        mFramePacer = new FramePacer(mFps);
+        mSpeedGovernor = new SpeedGovernor(mFps);
+        mLatencyTracker.setFps(mFps);
+        mIsGoverned = app.getSpeedGovernor();
+        mIsBoosted = app.getPerformanceBoost();
+        mIsPitchPreserved = app.getPreservePitch();
+        mIsAudioClocked = app.getAudioClock();
+        mFrameWatchdog = new FrameWatchdog(app, mHandler);
+        mFrameWatchdog.setBudget(app.getWatchdogBudget());
+        mCommandQueue.setStallCheck(mFrameWatchdog::isStalled);
+        mBlendLevel = app.getBlendLevel();
+        mIsBlendCapture = app.getBlendCapture();
     }
 
     public boolean isEmulating() {
-        return mIsEmulating;
+        return (mState.get() == State.RUNNING);
     }
 
     public void setFps(float fps) {
         mFps = fps;
+        mLatencyTracker.setFps(fps);
     }
 
-    public synchronized void bindEmulatorView(EmulatorScreenView emulatorView) {
-        mEmulatorView = emulatorView;
+    /**
+     * Enables to drop display frames and lower the speed automatically if the device can't
+     * sustain the target fps.
+     */
+    public void setGoverned(boolean isGoverned) {
+        mIsGoverned = isGoverned;
+    }
+
+    /**
+     * Returns the current degradation level of the speed governor, 0 means no degradation.
+     */
+    public int getDegradationLevel() {
+        return (mIsGoverned) ? mSpeedGovernor.getLevel() : 0;
+    }
+
+    /**
+     * Enables to raise the priorities of the workers and to report the work duration of each
+     * frame to the performance hint API.
+     */
+    public void setBoosted(boolean isBoosted) {
+        mIsBoosted = isBoosted;
+    }
+
+    /**
+     * Enables to keep the pitch of the sound at the normal speed, instead of following the
+     * emulation speed.
+     */
+    public void setPitchPreserved(boolean isPitchPreserved) {
+        mIsPitchPreserved = isPitchPreserved;
+    }
+
+    /**
+     * Enables to pace the emulation by the clock of the sound output instead of the system
+     * clock, and to delay the frames by the latency of the sound.
+     */
+    public void setAudioClocked(boolean isAudioClocked) {
+        mIsAudioClocked = isAudioClocked;
+    }
+
+    /**
+     * Returns the watchdog of the emulation core. Its listener is notified on the UI thread.
+     */
+    public FrameWatchdog getFrameWatchdog() {
+        return mFrameWatchdog;
+    }
+
+    /**
+     * Returns the state of the buttons which the emulation worker feeds into the core.
+     */
+    public ButtonInput getButtonInput() {
+        return mButtonInput;
+    }
+
+    /**
+     * Returns the tracker of the latency from input events to the drawn frames.
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /**
+     * Sets the level of temporal frame blending, one of FrameBlender.LEVEL_*.
+     */
+    public void setBlendLevel(int level) {
+        mBlendLevel = level;
+    }
+
+    /**
+     * Enables to capture the blended frames instead of the raw ones.
+     */
+    public void setBlendCapture(boolean isBlendCapture) {
+        mIsBlendCapture = isBlendCapture;
+    }
+
+    public boolean isTurbo() {
+        return mIsTurbo;
+    }
+
+    /**
+     * Runs the emulation as fast as possible while any owner enables it. Only the newest frame
+     * is presented at display rate and the sound is muted. It's called by the UI thread.
+     *
+     * @param owner one of TURBO_BY_*, so that an owner only cancels the turbo which it enabled.
+     */
+    public void setTurbo(int owner, boolean isTurbo) {
+        if (isTurbo) {
+            mTurboOwners |= owner;
+        } else {
+            mTurboOwners &= ~owner;
+        }
+        mIsTurbo = (mTurboOwners != 0);
+    }
+
+    /**
+     * Returns the achieved emulation speed relative to the normal speed (30fps).
+     */
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    public String getStatistics() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Pacing: ").append(mFramePacer).append('\n');
+        buf.append("Governor: ").append(mSpeedGovernor).append('\n');
+        buf.append("Work (normal): ").append(mNormalWorkStats).append('\n');
+        buf.append("Work (boosted): ").append(mBoostedWorkStats).append('\n');
+        buf.append("Watchdog: ").append(mFrameWatchdog).append('\n');
+        buf.append("Sound: ").append(mSoundRing).append('\n');
+        if (mIsCapturing) {
+            buf.append("Sound capture: overruns=").append(mWavWriter.getOverruns()).append('\n');
+        }
+        buf.append("Audio clock: ").append(mAudioClock).append('\n');
+        AudioBufferTuner audioBufferTuner = mAudioBufferTuner;
+        if (audioBufferTuner != null) {
+            buf.append("Sound output: ").append(audioBufferTuner).append('\n');
+        }
+        buf.append(String.format(Locale.US, "Resume to first frame: %.2fms\n",
+                mResumeLatency / 1000000.0));
+        buf.append(String.format(Locale.US, "Reset to first frame: %.2fms\n",
+                mResetLatency / 1000000.0));
+        long totalFrames = mTotalFrames;
+        long unchangedFrames = mUnchangedFrames;
+        buf.append(String.format(Locale.US, "Unchanged: %d/%d (%.1f%%)\n", unchangedFrames,
+                totalFrames, (totalFrames > 0) ? unchangedFrames * 100f / totalFrames : 0f));
+        EmulatorScreen emulatorView = mEmulatorView;
+        if (emulatorView != null) {
+            EmulatorPainter painter = emulatorView.getPainter();
+            buf.append("Frames: ").append(painter.getFrameExchanger()).append('\n');
+            buf.append(painter.getDrawStatistics()).append('\n');
+        }
+        buf.append(mLatencyTracker);
+        InputMovie movie = mMovie;
+        if (movie != null) {
+            buf.append(String.format(Locale.US, "Movie: %s %d/%d\n",
+                    (movie.isPlaying()) ? "playing" : "recording", movie.getFrame(),
+                    movie.getFrameCount()));
+        }
+        if (mMovieReport != null) {
+            buf.append(mMovieReport);
+        }
+        if (mReplayReport != null) {
+            buf.append(mReplayReport);
+        }
+        ScriptRunner script = mScript;
+        if (script != null) {
+            buf.append(String.format(Locale.US, "Script: running, frame %d\n",
+                    script.getFrame()));
+        } else if (mScriptReport != null) {
+            buf.append(mScriptReport);
+        }
+        return buf.toString();
     }
 
-    public synchronized boolean initializeEmulation(String path) {
-        if (mIsEmulationAvailable) {
-            finishEmulation();
+    public void bindEmulatorView(EmulatorScreen emulatorView) {
+        if (emulatorView != null) {
+            emulatorView.getPainter().setButtonInput(mButtonInput);
+            emulatorView.getPainter().setLatencyTracker(mLatencyTracker);
+            mLatencyTracker.setRenderer(emulatorView.getClass().getSimpleName());
         }
-        mIsEmulationAvailable = Native.setup(path);
-        Native.setRefreshTiming(mApp.getEmulationPostRefresh());
-        return mIsEmulationAvailable;
+        mEmulatorView = emulatorView;
     }
 
-    public synchronized boolean startEmulation() {
-        if (!mIsEmulationAvailable) {
+    public boolean initializeEmulation(String path) {
+        if (mFrameWatchdog.isStalled()) {
+            return false; // the emulation worker is still wedged in the core
+        }
+        finishEmulation(); // before the local copy of the current flash image is overwritten
+        final CRC32 crc = new CRC32();
+        final File flashFile = prepareFlashFile(path, crc);
+        if (flashFile == null) {
             return false;
         }
-        if (mEmulationThread != null || mSoundThread != null) {
-            stopEmulation();
+        ensureWorkers();
+        final boolean isRefreshOnRound = mApp.getEmulationPostRefresh();
+        final int romCrc = (int) crc.getValue();
+        boolean ret = mCommandQueue.call(() -> {
+            if (mState.get() != State.IDLE) {
+                return false; // the former core hasn't been torn down yet
+            }
+            if (mIsCoreReady) {
+                Native.teardown(); // left by a former call which timed out
+            }
+            mIsCoreReady = Native.setup(flashFile.getAbsolutePath());
+            mCoreButtonMask = 0;
+            mMovie = null;
+            mReplay = null;
+            mSession = null;
+            if (mIsCoreReady) {
+                Native.setRefreshTiming(isRefreshOnRound);
+                mSession = InputMovie.newRecording(romCrc, mEeprom);
+                mState.compareAndSet(State.IDLE, State.PAUSED);
+            }
+            return mIsCoreReady;
+        }, false);
+        if (ret) {
+            mRomPath = path;
+            mRomCrc = romCrc;
+            mFrameWatchdog.setRomPath(path);
+        }
+        return ret;
+    }
+
+    public boolean startEmulation() {
+        if (!mState.compareAndSet(State.PAUSED, State.RUNNING)) {
+            return isEmulating();
         }
-        final Handler handler = new Handler();
-        mEmulationThread = new Thread(() -> {
-            float fps = mFps;
-            int[] pixels = new int[PIXELS_SIZE];
-            long baseTime = System.currentTimeMillis();
-            long frames = 0;
+        mResumeTime = System.nanoTime();
+        ensureWorkers();
+        wakeWorkers();
+        mFrameWatchdog.arm();
+        return true;
+    }
+
+    /**
+     * Restarts the emulation core with the local copy of the current flash image. The workers
+     * and the sound output are kept alive, and the EEPROM is carried over in memory.
+     *
+     * @return false if the core hasn't been initialized or it failed to restart.
+     */
+    public boolean resetEmulation() {
+        if (mState.get() == State.RUNNING) {
+            // only the plain reset is measured, not the replays, the scripts nor the movies
+            mResetTime = System.nanoTime();
+        }
+        boolean ret = resetEmulation(null);
+        if (!ret) {
+            mResetTime = 0;
+        }
+        return ret;
+    }
+
+    /**
+     * Requests the workers to park. It doesn't wait for them; the current frame is completed
+     * and the EEPROM is saved by the emulation worker. Accesses to the EEPROM are ordered with
+     * the save since they are executed by the worker too.
+     */
+    public void stopEmulation() {
+        if (mState.compareAndSet(State.RUNNING, State.PAUSED)) {
+            mFrameWatchdog.disarm();
+            wakeWorkers();
+        }
+    }
+
+    /**
+     * Releases the emulation core. It waits until the emulation worker has torn it down, which
+     * takes one frame at most.
+     */
+    public void finishEmulation() {
+        State state = mState.get();
+        if (state == State.IDLE || !mState.compareAndSet(state, State.TEARDOWN)) {
+            return;
+        }
+        mFrameWatchdog.disarm();
+        wakeWorkers();
+        long deadline = System.nanoTime() + TEARDOWN_TIMEOUT_NS;
+        while (mState.get() == State.TEARDOWN && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TEARDOWN_POLL_NS);
+        }
+    }
+
+    /**
+     * Changes the refresh timing of the display. It's executed by the emulation worker.
+     */
+    public Future<Boolean> setRefreshTiming(boolean isOnRound) {
+        return submitToCore(() -> Native.setRefreshTiming(isOnRound));
+    }
 
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Restarts the emulation core, and runs a hook on the emulation worker right after that in
+     * the same command, so that no frame is emulated in between.
+     */
+    private boolean resetEmulation(Runnable onReset) {
+        State state = mState.get();
+        if ((state != State.RUNNING && state != State.PAUSED) || mFrameWatchdog.isStalled()) {
+            return false;
+        }
+        final File flashFile = new File(mApp.getFilesDir(), FLASH_FILE_NAME);
+        final boolean isRefreshOnRound = mApp.getEmulationPostRefresh();
+        final int romCrc = mRomCrc;
+        return mCommandQueue.call(() -> {
+            if (!mIsCoreReady) {
+                return false;
+            }
+            pullEeprom();
+            Native.teardown();
+            mIsCoreReady = Native.setup(flashFile.getAbsolutePath());
+            mCoreButtonMask = 0;
+            abortScript();
+            mMovie = null;
+            mReplay = null;
+            mSession = null;
+            if (!mIsCoreReady) {
+                // nothing to run any more until the emulation is initialized again
+                if (!mState.compareAndSet(State.RUNNING, State.IDLE)) {
+                    mState.compareAndSet(State.PAUSED, State.IDLE);
+                }
+                return false;
+            }
+            Native.setRefreshTiming(isRefreshOnRound);
             Native.setEeprom(mEeprom);
-            while (mIsEmulating) {
-                if (mEmulatorView != null) {
-                    boolean[] buttonState = mEmulatorView.updateButtonState();
-                    for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-                        Native.buttonEvent(buttonIdx, buttonState[buttonIdx]);
+            mSession = InputMovie.newRecording(romCrc, mEeprom);
+            if (onReset != null) {
+                onReset.run();
+            }
+            return true;
+        }, false);
+    }
+
+    /**
+     * Submits a command which touches the emulation core. All calls to Native are funneled
+     * through the command queue so that the core is only ever entered by the emulation worker.
+     */
+    private Future<Boolean> submitToCore(Callable<Boolean> command) {
+        ensureWorkers();
+        return mCommandQueue.submit(() -> mIsCoreReady && command.call());
+    }
+
+    /**
+     * Copies a flash image into the files directory after validating it roughly, so that
+     * resets never have to read the original file again.
+     *
+     * @param crc updated with the content of the image.
+     * @return the local copy, or null if the image is invalid.
+     */
+    private File prepareFlashFile(String path, CRC32 crc) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long length = Utils.transferBytes(new FileInputStream(path), out, FLASH_CALLBACK);
+            String hex = out.toString("US-ASCII");
+            if (length > FLASH_FILE_SIZE_MAX || !hex.startsWith(":")
+                    || !hex.toUpperCase(Locale.US).contains(FLASH_EOF_RECORD)) {
+                return null;
+            }
+            crc.update(out.toByteArray());
+            File file = new File(mApp.getFilesDir(), FLASH_FILE_NAME);
+            try (OutputStream fileOut = new FileOutputStream(file)) {
+                out.writeTo(fileOut);
+            }
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void ensureWorkers() {
+        if (mEmulationThread == null) {
+            mEmulationThread = new Thread(() -> runEmulationWorker(), "Emulation");
+            mEmulationThread.setDaemon(true);
+            mCommandQueue.setOwner(mEmulationThread);
+            mEmulationThread.start();
+        }
+        if (mSoundThread == null) {
+            mSoundThread = new Thread(() -> runSoundWorker(), "Sound");
+            mSoundThread.setDaemon(true);
+            mSoundThread.start();
+        }
+    }
+
+    private void wakeWorkers() {
+        LockSupport.unpark(mEmulationThread);
+        LockSupport.unpark(mSoundThread);
+    }
+
+    private void runEmulationWorker() {
+        float fps = mFps;
+        boolean isTurbo = mIsTurbo;
+        boolean isGoverned = mIsGoverned;
+        boolean isBoosted = false;
+        boolean isAudioClocked = false;
+        FrameDelayLine delayLine = null;
+        int blendLevel = FrameBlender.LEVEL_OFF;
+        PerformanceBooster booster =
+                new PerformanceBooster(mApp, Process.THREAD_PRIORITY_DISPLAY);
+        int[] pixels = new int[PIXELS_SIZE];
+        int[] workPixels = new int[PIXELS_SIZE];
+        byte[] soundBuffer = new byte[SOUND_BUFFER_SIZE];
+        EmulatorScreen presentedView = null;
+        boolean isDirty = false;
+        long presentTime = 0;
+        long speedTime = 0;
+        int speedFrames = 0;
+        State lastState = State.IDLE;
+
+        while (true) {
+            mCommandQueue.drain();
+            State state = mState.get();
+            if (state != State.RUNNING) {
+                if (lastState == State.RUNNING) {
+                    if (pullEeprom()) {
+                        saveEeprom();
                     }
+                    mIsEepromLive = false;
                 }
-                Native.loop(pixels);
-                if (mEmulatorView != null) {
-                    mEmulatorView.updateScreen(pixels);
-                    mEmulatorView.postInvalidate();
+                if (isBoosted) {
+                    booster.stop();
+                    isBoosted = false;
                 }
-                if (mIsOneShot) {
-                    final File file = generateCaptureFile();
-                    if (mGifEncoder.oneShot(file, pixels)) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                notifyCaptured(file, false);
-                            }
-                        });
+                if (state == State.TEARDOWN) {
+                    if (mIsCoreReady) {
+                        Native.teardown();
+                        mIsCoreReady = false;
                     }
-                    mIsOneShot = false;
+                    mIsEepromLive = false;
+                    abortScript();
+                    mMovie = null;
+                    mReplay = null;
+                    mSession = null;
+                    mState.compareAndSet(State.TEARDOWN, State.IDLE);
                 }
-                if (mIsCapturing) {
-                    mGifEncoder.addFrame(pixels);
+                lastState = state;
+                LockSupport.park(this);
+                continue;
+            }
+            if (!mIsCoreReady) {
+                mState.compareAndSet(State.RUNNING, State.IDLE); // nothing to run
+                continue;
+            }
+            if (lastState != State.RUNNING) {
+                if (!isPlayingMovie()) {
+                    Native.setEeprom(mEeprom);
                 }
-                if (++frames >= fps) {
-                    baseTime += ONE_SECOND;
-                    frames = 0;
+                mIsEepromLive = true;
+                fps = mFps;
+                mFramePacer.reset(fps);
+                mSpeedGovernor.reset(fps);
+                mFrameBlender.reset();
+                isDirty = true;
+                speedTime = System.nanoTime();
+                speedFrames = 0;
+                lastState = state;
+            }
+            InputMovie replay = mReplay;
+            if (replay != null) {
+                if (runReplay(replay, workPixels, soundBuffer)) {
+                    isDirty = true;
+                    mFramePacer.rebase();
                 }
-                long currentTime = System.currentTimeMillis();
-                long targetTime = baseTime + (long)(frames * ONE_SECOND / fps);
-                if (mFps == fps && currentTime < targetTime) {
-                    try {
-                        Thread.sleep(targetTime - currentTime);
-                    } catch (InterruptedException e) {
-                        // do nothing
-                    }
+                continue;
+            }
+            if (isBoosted != mIsBoosted) {
+                isBoosted = mIsBoosted;
+                if (isBoosted) {
+                    booster.start(mFramePacer.getInterval());
                 } else {
-                    fps = mFps;
-                    baseTime = currentTime;
-                    frames = 0;
+                    booster.stop();
                 }
             }
-            Native.getEeprom(mEeprom);
-            saveEeprom();
-        });
-        mSoundThread = new Thread(() -> {
-            AudioTrack audioTrack = null;
-            byte[] soundBuffer = new byte[SOUND_BUFFER_SIZE];
-            float fps = 0;
-            while (mIsEmulating) {
-                if (fps != mFps) {
-                    fps = mFps;
-                    if (audioTrack != null) {
-                        audioTrack.release();
-                    }
-                    audioTrack = new AudioTrack.Builder()
-                            .setAudioAttributes(new AudioAttributes.Builder()
-                                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
-                                    .build())
-                            .setAudioFormat(new AudioFormat.Builder()
-                                    .setEncoding(AudioFormat.ENCODING_PCM_8BIT)
-                                    .setSampleRate((int)(SOUND_RATE_30FPS * fps / 30))
-                                    .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
-                                    .build())
-                            .setBufferSizeInBytes(SOUND_BUFFER_SIZE * 2)
-                            .build();
-                    audioTrack.play();
+            long frameTime = System.nanoTime();
+            EmulatorScreen emulatorView = mEmulatorView;
+            int inputState = mButtonInput.poll();
+            ScriptRunner script = mScript;
+            if (script != null) {
+                inputState = script.nextInput();
+            }
+            InputMovie movie = mMovie;
+            if (movie != null) {
+                inputState = movie.nextInput(inputState);
+            }
+            InputMovie session = mSession;
+            if (session != null) {
+                session.nextInput(inputState);
+            }
+            feedButtons(inputState);
+            mLatencyTracker.onCoreInput(System.nanoTime());
+            mFrameWatchdog.enter(mTotalFrames, inputState);
+            Native.loop(workPixels);
+            mFrameWatchdog.exit();
+            int soundLen = Native.getSoundBuffer(soundBuffer);
+            if (soundLen > 0 && !isTurbo) {
+                mSoundRing.write(soundBuffer, 0, soundLen);
+            }
+            if (session != null) {
+                session.endFrame(workPixels);
+            }
+            if (movie != null) {
+                movie.endFrame(workPixels);
+                if (movie.isFinished()) {
+                    finishPlayingMovie(movie);
                 }
-                int len = Native.getSoundBuffer(soundBuffer);
-                if (len > 0) {
-                    audioTrack.write(soundBuffer, 0, len);
-                } else {
-                    try {
-                        Thread.sleep((int)(ONE_SECOND / fps));
-                    } catch (InterruptedException e) {
-                        // do nothing
+            }
+            if (script != null) {
+                script.endFrame(workPixels);
+                if (script.takeCaptureRequest()) {
+                    mIsOneShot = true;
+                }
+                if (script.isFinished()) {
+                    finishScript(script);
+                }
+            }
+            long currentTime = System.nanoTime();
+            if (mResumeTime != 0) {
+                mResumeLatency = currentTime - mResumeTime;
+                mResumeTime = 0;
+            }
+            if (mResetTime != 0) {
+                mResetLatency = currentTime - mResetTime;
+                mResetTime = 0;
+            }
+            boolean isChanged = !Arrays.equals(workPixels, pixels);
+            if (isChanged) {
+                int[] tmpPixels = pixels;
+                pixels = workPixels;
+                workPixels = tmpPixels;
+            } else {
+                mUnchangedFrames++;
+            }
+            mLatencyTracker.onFrame(currentTime, isChanged);
+            mTotalFrames++;
+            if (blendLevel != mBlendLevel) {
+                blendLevel = mBlendLevel;
+                mFrameBlender.reset();
+                isDirty = true;
+            }
+            int[] blendedPixels = pixels;
+            boolean isBlendedChanged = isChanged;
+            if (blendLevel != FrameBlender.LEVEL_OFF) {
+                isBlendedChanged = mFrameBlender.blend(pixels, blendLevel);
+                blendedPixels = mFrameBlender.getPixels();
+            }
+            boolean isBlendCapture = mIsBlendCapture;
+            int[] capturePixels = (isBlendCapture) ? blendedPixels : pixels;
+            boolean isCaptureChanged = (isBlendCapture) ? isBlendedChanged : isChanged;
+            isDirty |= emulatorView != presentedView;
+            if (isAudioClocked != (mIsAudioClocked && !isTurbo && mAudioClock.isValid())) {
+                isAudioClocked = !isAudioClocked;
+                if (isAudioClocked) {
+                    if (delayLine == null) {
+                        delayLine = new FrameDelayLine(PIXELS_SIZE, FRAME_DELAY_CAPACITY);
                     }
+                    delayLine.push(blendedPixels, currentTime - mAudioClock.getLatency());
+                } else {
+                    mFramePacer.setRateScale(1f);
+                    delayLine.clear();
+                }
+                isDirty = true;
+            }
+            int[] presentPixels = blendedPixels;
+            if (isAudioClocked) {
+                if (isBlendedChanged) {
+                    delayLine.push(blendedPixels, currentTime);
                 }
+                isDirty |= delayLine.advance(currentTime - mAudioClock.getLatency());
+                presentPixels = delayLine.getCurrent();
+            } else {
+                isDirty |= isBlendedChanged;
             }
-            if (audioTrack != null) {
-                audioTrack.release();
+            boolean isPresentable = (isTurbo)
+                    ? currentTime - presentTime >= TURBO_PRESENT_INTERVAL_NS
+                    : !isGoverned || mSpeedGovernor.shouldPresent();
+            if (emulatorView != null && isDirty && isPresentable && presentPixels != null) {
+                mLatencyTracker.onPresent();
+                emulatorView.updateScreen(presentPixels);
+                emulatorView.requestRender();
+                presentedView = emulatorView;
+                isDirty = false;
+                presentTime = currentTime;
+            }
+            if (mIsOneShot) {
+                final File file = generateCaptureFile();
+                if (mGifEncoder.oneShot(file, capturePixels)) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyCaptured(file, false);
+                        }
+                    });
+                }
+                mIsOneShot = false;
+            }
+            if (mIsCapturing) {
+                if (isCaptureChanged || !mGifEncoder.repeatFrame()) {
+                    mGifEncoder.addFrame(capturePixels);
+                }
+                mWavWriter.addFrame(soundBuffer, soundLen);
+            }
+            speedFrames++;
+            if (currentTime - speedTime >= SPEED_WINDOW_NS) {
+                mSpeed = (float) speedFrames * ONE_SECOND_NS / (currentTime - speedTime)
+                        / NORMAL_FPS;
+                speedTime = currentTime;
+                speedFrames = 0;
+            }
+            long busyTime = System.nanoTime() - frameTime;
+            if (isBoosted) {
+                mBoostedWorkStats.record(busyTime);
+                booster.setTarget(mFramePacer.getInterval());
+                booster.report(busyTime);
+            } else {
+                mNormalWorkStats.record(busyTime);
+            }
+            if (fps != mFps || isGoverned != mIsGoverned) {
+                fps = mFps;
+                isGoverned = mIsGoverned;
+                mSpeedGovernor.reset(fps);
+                mFramePacer.setFps(fps);
+            } else if (!isTurbo && isGoverned
+                    && mSpeedGovernor.update(frameTime, busyTime)) {
+                mFramePacer.setFps(mSpeedGovernor.getEffectiveFps());
+            }
+            if (isTurbo != mIsTurbo) {
+                isTurbo = mIsTurbo;
+                if (!isTurbo) {
+                    mSpeedGovernor.reset(fps);
+                    mFramePacer.setFps(fps);
+                    mFramePacer.rebase();
+                }
+            }
+            if (isAudioClocked) {
+                mFramePacer.setRateScale(mAudioClock.getRateScale());
+            }
+            if (!isTurbo) {
+                mFramePacer.awaitNextFrame();
             }
-        });
-        if (mEmulationThread == null || mSoundThread == null) {
-            return false;
         }
-        mIsEmulating = true;
-        mEmulationThread.start();
-        mSoundThread.start();
-        return true;
     }
 
-    public synchronized void stopEmulation() {
-        if (mEmulationThread != null) {
-            mIsEmulating = false;
-            try {
-                mEmulationThread.join(ONE_SECOND);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Feeds the buttons which flipped since the previous frame into the core.
+     */
+    private void feedButtons(int inputState) {
+        int flippedMask = inputState ^ mCoreButtonMask;
+        if (flippedMask != 0) {
+            for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+                if (ButtonInput.isPressed(flippedMask, buttonIdx)) {
+                    Native.buttonEvent(buttonIdx, ButtonInput.isPressed(inputState, buttonIdx));
+                }
             }
-            mEmulationThread = null;
+            mCoreButtonMask = inputState;
         }
-        if (mSoundThread != null) {
-            mIsEmulating = false;
-            try {
-                mSoundThread.join(ONE_SECOND);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    }
+
+    /**
+     * Replays a quick save slot headlessly for a time slice, so that the commands are still
+     * drained in between. Nothing is presented and the sound is discarded.
+     *
+     * @return true if the replay has reached the saved frame.
+     */
+    private boolean runReplay(InputMovie replay, int[] pixels, byte[] soundBuffer) {
+        long deadline = System.nanoTime() + REPLAY_SLICE_NS;
+        while (!replay.isFinished()) {
+            feedButtons(replay.nextInput(0));
+            Native.loop(pixels);
+            Native.getSoundBuffer(soundBuffer);
+            replay.endFrame(pixels);
+            if (System.nanoTime() >= deadline) {
+                mReplayFrame = replay.getFrame();
+                return false;
             }
-            mSoundThread = null;
         }
+        long elapsedTime = System.nanoTime() - mReplayStartTime;
+        int frames = replay.getFrame();
+        int divergedFrame = replay.getDivergedFrame();
+        mReplayReport = String.format(Locale.US,
+                "Quick load: %d frames in %.2fs (%.0ffps, x%.1f)\nDiverged at: %s\n",
+                frames, elapsedTime / (double) ONE_SECOND_NS,
+                (elapsedTime > 0) ? frames * (double) ONE_SECOND_NS / elapsedTime : 0.0,
+                (elapsedTime > 0) ? frames * (double) ONE_SECOND_NS / elapsedTime / NORMAL_FPS
+                        : 0.0,
+                (divergedFrame >= 0) ? "frame " + divergedFrame : "-");
+        replay.continueRecording();
+        mSession = replay;
+        mReplayFrame = frames;
+        mReplay = null;
+        return true;
     }
 
-    public synchronized void finishEmulation() {
-        if (mIsEmulationAvailable) {
-            stopEmulation();
-            Native.teardown();
-            mIsEmulationAvailable = false;
+    /**
+     * Writes the samples which the emulation worker has put into the sound ring to the output.
+     * It never enters the core, and it's blocked by the output while it's full. The output is
+     * opened at the native rate of the device, and the speed changes are followed by the
+     * resampler. It's opened in the low latency mode, and its buffer starts from the minimum
+     * size and grows only when it underruns. It's kept while the emulation is paused, and it's
+     * released when the emulation is finished and opened again with the grown size on the next
+     * start.
+     */
+    private void runSoundWorker() {
+        int outputRate = getAudioProperty(
+                AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE, SOUND_OUTPUT_RATE_DEFAULT);
+        int burstFrames = getAudioProperty(
+                AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, SOUND_BURST_FRAMES_DEFAULT);
+        int minFrames = AudioTrack.getMinBufferSize(outputRate, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT) / 2;
+        if (minFrames <= 0) {
+            minFrames = burstFrames * 2;
+        }
+        int capacityFrames = Math.max(minFrames * SOUND_CAPACITY_FACTOR,
+                (int) (outputRate * SOUND_CAPACITY_MIN_NS / ONE_SECOND_NS));
+        SoundResampler resampler = new SoundResampler(outputRate);
+        AudioTrack audioTrack = null;
+        AudioBufferTuner tuner = new AudioBufferTuner(burstFrames, outputRate);
+        int initialFrames = minFrames;
+        mAudioBufferTuner = tuner;
+        long ringUnderruns = 0;
+        boolean isFed = false;
+        byte[] soundBuffer = new byte[SOUND_BUFFER_SIZE];
+        short[] outputBuffer = new short[SOUND_BUFFER_SIZE];
+        boolean isBoosted = false;
+        PerformanceBooster booster =
+                new PerformanceBooster(mApp, Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (true) {
+            if (isBoosted != mIsBoosted) {
+                isBoosted = mIsBoosted;
+                if (isBoosted) {
+                    booster.start(0);
+                } else {
+                    booster.stop();
+                }
+            }
+            State state = mState.get();
+            if (state != State.RUNNING) {
+                if (audioTrack != null) {
+                    if (state == State.PAUSED) {
+                        audioTrack.pause();
+                        audioTrack.flush();
+                    } else {
+                        initialFrames = tuner.getBufferFrames();
+                        audioTrack.release();
+                        audioTrack = null;
+                    }
+                }
+                mSoundRing.clear();
+                mAudioClock.reset();
+                isFed = false;
+                LockSupport.park(this);
+                continue;
+            }
+            if (audioTrack == null) {
+                audioTrack = createAudioTrack(outputRate, capacityFrames);
+                tuner.start(audioTrack, initialFrames);
+            }
+            if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                audioTrack.play();
+            }
+            float fps = mFps;
+            float achievedFps = (mIsGoverned)
+                    ? Math.min(mSpeedGovernor.getAchievedFps(), fps) : fps;
+            float inputRate = SOUND_RATE_30FPS * achievedFps / NORMAL_FPS;
+            resampler.setRates(inputRate, (mIsPitchPreserved) ? SOUND_RATE_30FPS : inputRate);
+            if (mIsTurbo || mReplay != null) {
+                mSoundRing.clear(); // muted
+                isFed = false;
+                LockSupport.parkNanos((long) (ONE_SECOND_NS / fps));
+                continue;
+            }
+            int maxLen = Math.min(resampler.getMaxInput(outputBuffer.length), SOUND_BUFFER_SIZE);
+            int len = mSoundRing.read(soundBuffer, 0, maxLen, (long) (ONE_SECOND_NS / fps));
+            if (len > 0) {
+                int outputLen = resampler.process(soundBuffer, 0, len, outputBuffer, 0);
+                if (!isFed) {
+                    tuner.rebase(audioTrack);
+                    isFed = true;
+                }
+                audioTrack.write(outputBuffer, 0, outputLen);
+                tuner.update(audioTrack, mSoundRing.getUnderruns() != ringUnderruns);
+                ringUnderruns = mSoundRing.getUnderruns();
+                mAudioClock.onWritten(audioTrack, outputLen, outputRate,
+                        (long) (mSoundRing.available() * ONE_SECOND_NS / inputRate));
+            }
+        }
+    }
+
+    private AudioTrack createAudioTrack(int outputRate, int capacityFrames) {
+        return new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(outputRate)
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                        .build())
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .setBufferSizeInBytes(capacityFrames * 2)
+                .build();
+    }
+
+    private int getAudioProperty(String key, int defaultValue) {
+        AudioManager audioManager = (AudioManager) mApp.getSystemService(Context.AUDIO_SERVICE);
+        String value = audioManager.getProperty(key);
+        try {
+            return (value != null) ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return defaultValue;
         }
     }
 
@@ -251,39 +1002,40 @@ public class TJPEmulator {
     /*                            Control EEPROM                             */
     /*-----------------------------------------------------------------------*/
 
+    /**
+     * Returns a copy of the EEPROM data. It's taken from the emulation core while the core
+     * holds it, so that it's never older than the core.
+     */
     public byte[] getEeprom() {
-        return mEeprom;
+        return callEeprom(() -> {
+            pullEeprom();
+            return mEeprom.clone();
+        }, null);
     }
 
     public void loadEeprom() {
+        byte[] eeprom;
         try {
-            inputEeprom(mApp.openFileInput(EEPROM_FILE_NAME), true);
+            eeprom = inputEeprom(mApp.openFileInput(EEPROM_FILE_NAME), true);
         } catch (Exception e) {
             e.printStackTrace();
-            defaultEeprom();
+            eeprom = defaultEeprom();
         }
+        final byte[] loadedEeprom = eeprom;
+        callEeprom(() -> {
+            mEeprom = loadedEeprom;
+            return true;
+        }, false);
     }
 
-    public void clearEeprom() {
-        defaultEeprom();
-        if (mIsEmulating) {
-            Native.setEeprom(mEeprom);
-        } else {
-            saveEeprom();
-        }
+    public boolean clearEeprom() {
+        return applyEeprom(defaultEeprom());
     }
 
     public boolean restoreEeprom(String path) {
         try {
-            boolean ret = inputEeprom(new FileInputStream(new File(path)), false);
-            if (ret) {
-                if (mIsEmulating) {
-                    Native.setEeprom(mEeprom);
-                } else {
-                    saveEeprom();
-                }
-            }
-            return ret;
+            byte[] eeprom = inputEeprom(new FileInputStream(new File(path)), false);
+            return (eeprom != null && applyEeprom(eeprom));
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -291,58 +1043,390 @@ public class TJPEmulator {
     }
 
     public boolean backupEeprom(String path) {
+        byte[] eeprom = getEeprom();
+        if (eeprom == null) {
+            return false;
+        }
         try {
-            return outputEeprom(new FileOutputStream(new File(path)));
+            return outputEeprom(eeprom, new FileOutputStream(new File(path)));
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
     }
 
-    public void saveEeprom() {
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Executes a command which touches the EEPROM data. All accesses are funneled through the
+     * emulation worker once it has been started, so that they are ordered with its own saves.
+     */
+    private <T> T callEeprom(Callable<T> command, T defaultValue) {
+        if (mEmulationThread == null) {
+            try {
+                return command.call();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return defaultValue;
+            }
+        }
+        return mCommandQueue.call(command, defaultValue);
+    }
+
+    /**
+     * Replaces the EEPROM data, and writes it into the emulation core if the core holds it, or
+     * saves it. The core's data is saved when the emulation is paused.
+     */
+    private boolean applyEeprom(final byte[] eeprom) {
+        return callEeprom(() -> {
+            mEeprom = eeprom;
+            mSession = null; // it can't be replayed any more
+            if (mIsEepromLive && mIsCoreReady && !isPlayingMovie()) {
+                return Native.setEeprom(eeprom);
+            }
+            saveEeprom();
+            return true;
+        }, false);
+    }
+
+    /**
+     * Copies the EEPROM data from the emulation core if the core holds it. It's called by the
+     * emulation worker.
+     *
+     * @return true if it has been copied.
+     */
+    private boolean pullEeprom() {
+        if (!mIsEepromLive || !mIsCoreReady || isPlayingMovie()) {
+            return false; // a movie holds the EEPROM before the playback
+        }
+        Native.getEeprom(mEeprom);
+        return true;
+    }
+
+    private void saveEeprom() {
         try {
-            outputEeprom(mApp.openFileOutput(EEPROM_FILE_NAME, Context.MODE_PRIVATE));
+            outputEeprom(mEeprom, mApp.openFileOutput(EEPROM_FILE_NAME, Context.MODE_PRIVATE));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private boolean inputEeprom(InputStream in, boolean isInternal)
+    /**
+     * Reads EEPROM data from a stream.
+     *
+     * @param isInternal true if the default data is returned when the data is missing.
+     * @return the data, or null if it's too short.
+     */
+    private byte[] inputEeprom(InputStream in, boolean isInternal)
             throws FileNotFoundException, IOException {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream(EEPROM_SIZE);
             long length = Utils.transferBytes(in, out, EEPROM_CALLBACK);
             if (length >= EEPROM_SIZE) {
-                mEeprom = out.toByteArray();
-                return true;
-            } else if (isInternal) {
-                defaultEeprom();
-                return true;
-            } else {
-                return false;
+                return out.toByteArray();
             }
+            return (isInternal) ? defaultEeprom() : null;
         } catch (FileNotFoundException e) {
             if (isInternal) {
-                defaultEeprom();
-                return true;
-            } else {
-                throw e;
+                return defaultEeprom();
             }
+            throw e;
         }
     }
 
-    private boolean outputEeprom(OutputStream out) throws IOException {
-        long length = Utils.transferBytes(new ByteArrayInputStream(mEeprom), out, EEPROM_CALLBACK);
+    private boolean outputEeprom(byte[] eeprom, OutputStream out) throws IOException {
+        long length = Utils.transferBytes(new ByteArrayInputStream(eeprom), out, EEPROM_CALLBACK);
         return (length >= EEPROM_SIZE);
     }
 
-    private void defaultEeprom() {
-        mEeprom = new byte[EEPROM_SIZE];
-        for (int i = 0; i < EEPROM_SIZE; i++) {
-            mEeprom[i] = (byte) 0xFF;
+    private static byte[] defaultEeprom() {
+        byte[] eeprom = new byte[EEPROM_SIZE];
+        Arrays.fill(eeprom, (byte) 0xFF);
+        return eeprom;
+    }
+
+    /*-----------------------------------------------------------------------*/
+    /*                              Input Movie                              */
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the input movie of a flash image, which is placed next to it.
+     */
+    public static File getMovieFile(String romPath) {
+        int pos = romPath.lastIndexOf('.');
+        if (pos <= romPath.lastIndexOf(File.separatorChar)) {
+            pos = romPath.length();
+        }
+        return new File(romPath.substring(0, pos) + FilePickerActivity.EXT_MOVIE);
+    }
+
+    public void setMovieListener(MovieListener listener) {
+        mMovieListener = listener;
+    }
+
+    public boolean isRecordingMovie() {
+        InputMovie movie = mMovie;
+        return (movie != null && !movie.isPlaying());
+    }
+
+    public boolean isPlayingMovie() {
+        InputMovie movie = mMovie;
+        return (movie != null && movie.isPlaying());
+    }
+
+    /**
+     * Resets the emulation and starts recording the buttons of every frame.
+     */
+    public boolean startRecordingMovie() {
+        if (mRomPath == null) {
+            return false;
+        }
+        final int romCrc = mRomCrc;
+        return resetEmulation(() -> mMovie = InputMovie.newRecording(romCrc, mEeprom));
+    }
+
+    /**
+     * Stops recording and saves the input movie next to the flash image.
+     *
+     * @return the saved file, or null if it failed.
+     */
+    public File stopRecordingMovie() {
+        InputMovie movie = mCommandQueue.call(() -> {
+            InputMovie tmpMovie = mMovie;
+            if (tmpMovie == null || tmpMovie.isPlaying()) {
+                return null;
+            }
+            mMovie = null;
+            return tmpMovie;
+        }, null);
+        String romPath = mRomPath;
+        if (movie == null || romPath == null) {
+            return null;
+        }
+        File file = getMovieFile(romPath);
+        try {
+            movie.save(file);
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * Resets the emulation with the EEPROM of the input movie and plays it back. The EEPROM
+     * before the playback is saved, and restored when it's finished.
+     *
+     * @param isUnthrottled true to run as fast as possible.
+     * @return false if the movie can't be loaded or it was recorded with another flash image.
+     */
+    public boolean startPlayingMovie(boolean isUnthrottled) {
+        String romPath = mRomPath;
+        if (romPath == null) {
+            return false;
+        }
+        final InputMovie movie;
+        try {
+            movie = InputMovie.load(getMovieFile(romPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (movie.getRomCrc() != mRomCrc || movie.getEeprom().length != EEPROM_SIZE) {
+            return false;
+        }
+        boolean ret = resetEmulation(() -> {
+            saveEeprom();
+            Native.setEeprom(movie.getEeprom());
+            mSession = InputMovie.newRecording(movie.getRomCrc(), movie.getEeprom());
+            mMovie = movie;
+            mMovieStartTime = System.nanoTime();
+        });
+        if (ret && isUnthrottled) {
+            setTurbo(TURBO_BY_MOVIE, true);
+        }
+        return ret;
+    }
+
+    /**
+     * Stops the playback, and restores the EEPROM before that.
+     */
+    public boolean stopPlayingMovie() {
+        return mCommandQueue.call(() -> {
+            InputMovie movie = mMovie;
+            if (movie == null || !movie.isPlaying()) {
+                return false;
+            }
+            finishPlayingMovie(movie);
+            return true;
+        }, false);
+    }
+
+    private void finishPlayingMovie(InputMovie movie) {
+        mMovie = null;
+        if (mIsCoreReady) {
+            Native.setEeprom(mEeprom);
+        }
+        long elapsedTime = System.nanoTime() - mMovieStartTime;
+        int frames = movie.getFrame();
+        int divergedFrame = movie.getDivergedFrame();
+        final String report = String.format(Locale.US,
+                "Movie: %d/%d frames in %.2fs (%.1ffps)\nCheckpoints: %d, mismatched %d\n"
+                        + "Diverged at: %s\n",
+                frames, movie.getFrameCount(), elapsedTime / (double) ONE_SECOND_NS,
+                (elapsedTime > 0) ? frames * (double) ONE_SECOND_NS / elapsedTime : 0.0,
+                movie.getCheckpointCount(), movie.getMismatches(),
+                (divergedFrame >= 0) ? "frame " + divergedFrame : "-");
+        mMovieReport = report;
+        mHandler.post(() -> {
+            setTurbo(TURBO_BY_MOVIE, false);
+            if (mMovieListener != null) {
+                mMovieListener.onPlaybackFinished(report);
+            }
+        });
+    }
+
+    /*-----------------------------------------------------------------------*/
+    /*                          Automation Script                            */
+    /*-----------------------------------------------------------------------*/
+
+    public void setScriptListener(ScriptListener listener) {
+        mScriptListener = listener;
+    }
+
+    public boolean isRunningScript() {
+        return (mScript != null);
+    }
+
+    /**
+     * Resets the emulation and runs an automation script as fast as possible. The result is
+     * notified to the listener when it's finished.
+     */
+    public boolean startScript(final ScriptRunner script) {
+        boolean ret = resetEmulation(() -> {
+            mScript = script;
+            mScriptStartTime = System.nanoTime();
+        });
+        if (ret) {
+            setTurbo(TURBO_BY_SCRIPT, true);
+        }
+        return ret;
+    }
+
+    public boolean stopScript() {
+        return mCommandQueue.call(() -> {
+            if (mScript == null) {
+                return false;
+            }
+            abortScript();
+            return true;
+        }, false);
+    }
+
+    private void abortScript() {
+        ScriptRunner script = mScript;
+        if (script != null) {
+            finishScript(script);
+        }
+    }
+
+    private void finishScript(ScriptRunner script) {
+        mScript = null;
+        long elapsedTime = System.nanoTime() - mScriptStartTime;
+        int frames = script.getFrame();
+        final boolean isPassed = script.isFinished() && !script.isFailed();
+        String result = (isPassed) ? "passed" : (script.isFailed()) ? "failed" : "aborted";
+        final String report = String.format(Locale.US,
+                "Script: %s at frame %d in %.2fs (%.1ffps)\n%s", result, frames,
+                elapsedTime / (double) ONE_SECOND_NS,
+                (elapsedTime > 0) ? frames * (double) ONE_SECOND_NS / elapsedTime : 0.0,
+                script.getLog());
+        mScriptReport = report;
+        mHandler.post(() -> {
+            setTurbo(TURBO_BY_SCRIPT, false);
+            if (mScriptListener != null) {
+                mScriptListener.onScriptFinished(isPassed, report);
+            }
+        });
+    }
+
+    /*-----------------------------------------------------------------------*/
+    /*                            Quick Save Slots                           */
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Returns the time when a quick save slot was saved, or 0 if it's empty.
+     */
+    public long getQuickSlotTime(int slot) {
+        return getQuickSlotFile(slot).lastModified();
+    }
+
+    /**
+     * Saves the flash image, the EEPROM at the last reset and the input since then into a
+     * quick save slot.
+     *
+     * @return false if the session can't be replayed, e.g. the EEPROM was restored since then.
+     */
+    public boolean quickSave(int slot) {
+        final File file = getQuickSlotFile(slot);
+        return mCommandQueue.call(() -> {
+            InputMovie session = mSession;
+            if (session == null || mReplay != null) {
+                return false;
+            }
+            session.save(file);
+            return true;
+        }, false);
+    }
+
+    /**
+     * Resets the emulation and replays a quick save slot as fast as possible. The progress is
+     * polled by isReplaying() and getReplayProgress().
+     *
+     * @return false if the slot is empty or it was saved with another flash image.
+     */
+    public boolean quickLoad(int slot) {
+        final InputMovie replay;
+        try {
+            replay = InputMovie.load(getQuickSlotFile(slot));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (mRomPath == null || replay.getRomCrc() != mRomCrc
+                || replay.getEeprom().length != EEPROM_SIZE) {
+            return false;
+        }
+        mReplayFrame = 0;
+        return resetEmulation(() -> {
+            Native.setEeprom(replay.getEeprom());
+            mSession = null;
+            mReplay = replay;
+            mReplayStartTime = System.nanoTime();
+        });
+    }
+
+    public boolean isReplaying() {
+        return (mReplay != null);
+    }
+
+    /**
+     * Returns the progress of the replay in the range from 0 to 1.
+     */
+    public float getReplayProgress() {
+        InputMovie replay = mReplay;
+        int frameCount = (replay != null) ? replay.getFrameCount() : 0;
+        return (frameCount > 0) ? Math.min((float) mReplayFrame / frameCount, 1f) : 1f;
+    }
+
+    public String getReplayReport() {
+        return mReplayReport;
+    }
+
+    private File getQuickSlotFile(int slot) {
+        return new File(mApp.getFilesDir(), String.format(Locale.US, QUICK_SLOT_FILE_FORMAT, slot));
+    }
+
     /*-----------------------------------------------------------------------*/
     /*                            Screen Capture                             */
     /*-----------------------------------------------------------------------*/
@@ -351,37 +1435,57 @@ public class TJPEmulator {
         return mIsCapturing;
     }
 
-    public synchronized boolean requestOneShot() {
-        if (mIsEmulating) {
+    public boolean requestOneShot() {
+        if (isEmulating()) {
             mIsOneShot = true;
         }
         return mIsOneShot;
     }
 
-    public synchronized boolean startCapturing() {
-        if (!mIsEmulating || mIsCapturing) {
+    public boolean startCapturing() {
+        if (!isEmulating() || mIsCapturing
+                || (mCaptureFinishing != null && !mCaptureFinishing.isDone())) {
             return false;
         }
         if (mGifEncoder.start(getCaptureWorkFile())) {
+            mWavWriter.start(CAPTURE_WORK_SOUND_FILE); // the movie is captured even if it fails
             Utils.showToast(mApp, R.string.messageCaptureStart);
             mIsCapturing = true;
         }
         return mIsCapturing;
     }
 
-    public synchronized boolean stopCapturing() {
-        if (!mIsEmulating || !mIsCapturing) {
+    /**
+     * Stops capturing. The files are finished by the emulation worker after the current frame
+     * and the result is notified on the UI thread, so that the caller never waits for it.
+     */
+    public boolean stopCapturing() {
+        if (!isEmulating() || !mIsCapturing) {
             return false;
         }
         mIsCapturing = false;
-        File file = generateCaptureFile();
-        if (mGifEncoder.finish(file)) {
-            notifyCaptured(file, true);
-            return true;
-        } else {
-            Utils.showToast(mApp, R.string.messageCaptureFailed);
-            return false;
-        }
+        final File file = generateCaptureFile();
+        String path = file.getAbsolutePath();
+        final File soundFile =
+                new File(path.substring(0, path.lastIndexOf('.')) + CAPTURE_SOUND_EXT);
+        mCaptureFinishing = mCommandQueue.submit(() -> {
+            mWavWriter.finish(soundFile, (wavFile, isSucceeded) -> {
+                if (isSucceeded) {
+                    mHandler.post(() -> MediaScannerConnection.scanFile(
+                            mApp, new String[] { wavFile.getAbsolutePath() }, null, null));
+                }
+            });
+            final boolean ret = mGifEncoder.finish(file);
+            mHandler.post(() -> {
+                if (ret) {
+                    notifyCaptured(file, true);
+                } else {
+                    Utils.showToast(mApp, R.string.messageCaptureFailed);
+                }
+            });
+            return ret;
+        });
+        return true;
     }
 
     private void ensureCaptureDir() {
@@ -116,8 +116,13 @@ public class Utils {
 
     public static void showMessageDialog(
             Context context, int titleId, int messageId, OnClickListener listener) {
+        showMessageDialog(context, titleId, context.getText(messageId), listener);
+    }
+
+    public static void showMessageDialog(
+            Context context, int titleId, CharSequence message, OnClickListener listener) {
         AlertDialog dlg = new AlertDialog.Builder(context)
-                .setMessage(messageId)
+                .setMessage(message)
                 .setPositiveButton(android.R.string.ok, listener)
                 .create();
         if (titleId != 0) {
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Writer of the sound into a WAV file, unsigned 8-bit mono as the core emits. The emulation
+ * worker only copies the samples of each frame into a ring, and a background thread writes
+ * them into the file. The writer thread also patches the sizes in the RIFF header when it's
+ * finished, so that the producer never waits for the file.
+ * <p>
+ * All the samples are kept. They are aligned with the timeline of GifEncoder, where every
+ * frame lasts 1/30 second, by padding with silence only when they fall behind it.
+ */
+public class WavWriter {
+
+    public interface Listener {
+        /**
+         * Called by the writer thread when the file has been finished.
+         */
+        void onFinished(File file, boolean isSucceeded);
+    }
+
+    private static final int SAMPLE_RATE = TJPEmulator.SOUND_RATE_30FPS;
+    private static final int FRAME_RATE = 30; // timeline of frames (fps)
+    private static final int RING_SIZE = 16384; // must be a power of two
+    private static final int CHUNK_SIZE = 4096;
+    private static final int HEADER_SIZE = 44;
+    private static final byte SILENCE = (byte) 0x80;
+    private static final long POLL_NS = 100000000L;
+
+    private final SoundRing mRing = new SoundRing(RING_SIZE);
+    private final byte[]    mSilence = new byte[SAMPLE_RATE / FRAME_RATE + 1];
+    private File            mWorkFile;
+    private Thread          mThread;
+    private volatile File   mFile;
+    private volatile Listener mListener;
+    private volatile boolean mIsFinishing;
+    private volatile boolean mIsFailed;
+    private long            mFrameCount;    // accessed by the producer only
+    private long            mSampleCount;
+    private long            mDataSize;      // accessed by the writer thread only
+
+    /*-----------------------------------------------------------------------*/
+
+    public WavWriter() {
+        Arrays.fill(mSilence, SILENCE);
+    }
+
+    /**
+     * Opens a file and starts the writer thread.
+     *
+     * @return false if the file can't be opened or the former file is still being finished.
+     */
+    public boolean start(File file) {
+        if (mThread != null && mThread.isAlive()) {
+            return false;
+        }
+        final OutputStream out;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            out.write(new byte[HEADER_SIZE]); // patched later
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        mWorkFile = file;
+        mRing.clear();
+        mIsFinishing = false;
+        mIsFailed = false;
+        mFrameCount = 0;
+        mSampleCount = 0;
+        mDataSize = 0;
+        mThread = new Thread(() -> runWriter(out), "WavWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+        return true;
+    }
+
+    /**
+     * Adds the samples of a frame. It never waits for the file.
+     */
+    public void addFrame(byte[] samples, int len) {
+        if (mThread == null || mIsFinishing) {
+            return;
+        }
+        mFrameCount++;
+        if (len > 0) {
+            mRing.write(samples, 0, len);
+            mSampleCount += len;
+        }
+        long lack = mFrameCount * SAMPLE_RATE / FRAME_RATE - mSampleCount;
+        while (lack > 0) {
+            int silenceLen = (int) Math.min(lack, mSilence.length);
+            mRing.write(mSilence, 0, silenceLen);
+            mSampleCount += silenceLen;
+            lack -= silenceLen;
+        }
+    }
+
+    /**
+     * Requests the writer thread to finish the file and move it. It never waits for the file;
+     * the result is told to the listener.
+     *
+     * @return false if it hasn't been started.
+     */
+    public boolean finish(File file, Listener listener) {
+        if (mThread == null || mIsFinishing) {
+            return false;
+        }
+        mFile = file;
+        mListener = listener;
+        mIsFinishing = true;
+        mRing.wake();
+        return true;
+    }
+
+    /**
+     * Returns the number of times when samples were dropped since the file was too slow.
+     */
+    public long getOverruns() {
+        return mRing.getOverruns();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void runWriter(OutputStream out) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (true) {
+            int len = mRing.read(chunk, 0, CHUNK_SIZE, POLL_NS);
+            if (len > 0) {
+                if (!mIsFailed) { // otherwise the samples are discarded until it's finished
+                    try {
+                        out.write(chunk, 0, len);
+                        mDataSize += len;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        mIsFailed = true;
+                    }
+                }
+            } else if (mIsFinishing && mRing.available() == 0) {
+                break;
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mIsFailed = true;
+        }
+        finishFile();
+    }
+
+    private void finishFile() {
+        File file = mFile;
+        boolean ret = false;
+        if (!mIsFailed) {
+            try (RandomAccessFile raf = new RandomAccessFile(mWorkFile, "rw")) {
+                raf.write(buildHeader(mDataSize));
+                ret = mWorkFile.renameTo(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!ret) {
+            mWorkFile.delete();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onFinished(file, ret);
+        }
+    }
+
+    private static byte[] buildHeader(long dataSize) {
+        byte[] header = new byte[HEADER_SIZE];
+        putTag(header, 0, "RIFF");
+        putInt(header, 4, (int) (dataSize + HEADER_SIZE - 8));
+        putTag(header, 8, "WAVE");
+        putTag(header, 12, "fmt ");
+        putInt(header, 16, 16); // size of the format chunk
+        putShort(header, 20, 1); // linear PCM
+        putShort(header, 22, 1); // mono
+        putInt(header, 24, SAMPLE_RATE);
+        putInt(header, 28, SAMPLE_RATE); // bytes per second
+        putShort(header, 32, 1); // bytes per sample
+        putShort(header, 34, 8); // bits per sample
+        putTag(header, 36, "data");
+        putInt(header, 40, (int) dataSize);
+        return header;
+    }
+
+    private static void putTag(byte[] buf, int pos, String tag) {
+        for (int i = 0; i < 4; i++) {
+            buf[pos + i] = (byte) tag.charAt(i);
+        }
+    }
+
+    private static void putShort(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) value;
+        buf[pos + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] buf, int pos, int value) {
+        putShort(buf, pos, value);
+        putShort(buf, pos + 2, value >> 16);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2020 OBONO
+ * https://obono.hateblo.jp/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.tjpemu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SoundRingTest {
+
+    private static final int CAPACITY = 16;
+    private static final long TIMEOUT_NS = 1000000000L;
+    private static final long STREAM_BYTES = 32000L * 3600; // an hour of the sound
+    private static final long ALLOCATION_LIMIT = 1024 * 1024;
+
+    /*-----------------------------------------------------------------------*/
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityOtherThanPowerOfTwo() {
+        new SoundRing(CAPACITY + 1);
+    }
+
+    @Test
+    public void wrapsAround() {
+        SoundRing ring = new SoundRing(CAPACITY);
+        byte[] dst = new byte[CAPACITY];
+        for (int round = 0; round < 5; round++) {
+            byte[] src = sequence(round * 10, 10);
+            assertEquals(10, ring.write(src, 0, src.length));
+            assertEquals(10, ring.available());
+            assertEquals(10, ring.read(dst, 0, CAPACITY, 0));
+            assertArrayEquals(src, copyOf(dst, 10));
+        }
+        assertEquals(0, ring.getOverruns());
+        assertEquals(0, ring.getUnderruns());
+    }
+
+    @Test
+    public void dropsExcessWhenFull() {
+        SoundRing ring = new SoundRing(CAPACITY);
+        byte[] src = sequence(0, CAPACITY);
+        assertEquals(CAPACITY - 4, ring.write(src, 0, CAPACITY - 4));
+        assertEquals(4, ring.write(src, CAPACITY - 4, 6));
+        assertEquals(CAPACITY, ring.available());
+        assertEquals(1, ring.getOverruns());
+        assertEquals(0, ring.write(src, 0, 1));
+        assertEquals(2, ring.getOverruns());
+
+        byte[] dst = new byte[CAPACITY];
+        assertEquals(CAPACITY, ring.read(dst, 0, CAPACITY, 0));
+        assertArrayEquals(src, dst);
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void countsUnderrunOnlyAfterFed() {
+        SoundRing ring = new SoundRing(CAPACITY);
+        byte[] buf = new byte[CAPACITY];
+        assertEquals(0, ring.read(buf, 0, CAPACITY, 0));
+        assertEquals(0, ring.getUnderruns());
+
+        ring.write(buf, 0, 4);
+        assertEquals(4, ring.read(buf, 0, CAPACITY, 0));
+        assertEquals(0, ring.read(buf, 0, CAPACITY, 0));
+        assertEquals(1, ring.getUnderruns());
+        assertEquals(0, ring.read(buf, 0, CAPACITY, 0));
+        assertEquals(1, ring.getUnderruns());
+    }
+
+    @Test(timeout = 10000)
+    public void wakeReturnsFromWaitingWithoutUnderrun() {
+        SoundRing ring = new SoundRing(CAPACITY);
+        byte[] buf = new byte[CAPACITY];
+        ring.write(buf, 0, 4);
+        assertEquals(4, ring.read(buf, 0, CAPACITY, 0));
+        ring.wake();
+        assertEquals(0, ring.read(buf, 0, CAPACITY, TIMEOUT_NS * 60));
+        assertEquals(0, ring.getUnderruns());
+    }
+
+    @Test
+    public void clearDiscardsSamples() {
+        SoundRing ring = new SoundRing(CAPACITY);
+        byte[] src = sequence(0, CAPACITY);
+        ring.write(src, 0, 10);
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertEquals(CAPACITY, ring.write(src, 0, CAPACITY));
+    }
+
+    @Test(timeout = 60000)
+    public void streamsBetweenTwoThreadsWithoutCorruption() throws InterruptedException {
+        final SoundRing ring = new SoundRing(1024);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicLong producerAllocated = new AtomicLong();
+        Thread producer = new Thread(() -> {
+            Random random = new Random(1);
+            byte[] src = new byte[300];
+            long written = 0;
+            long allocated = allocatedBytes();
+            try {
+                while (written < STREAM_BYTES) {
+                    int len = (int) Math.min(random.nextInt(src.length) + 1,
+                            STREAM_BYTES - written);
+                    for (int i = 0; i < len; i++) {
+                        src[i] = (byte) (written + i);
+                    }
+                    int offset = 0;
+                    while (offset < len) {
+                        int ret = ring.write(src, offset, len - offset); // excess is retried
+                        if (ret == 0) {
+                            Thread.yield();
+                        }
+                        offset += ret;
+                    }
+                    written += len;
+                }
+                producerAllocated.set(allocatedBytes() - allocated);
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        producer.start();
+
+        Random random = new Random(2);
+        byte[] dst = new byte[500];
+        long read = 0;
+        long allocated = allocatedBytes();
+        while (read < STREAM_BYTES) {
+            int len = ring.read(dst, 0, random.nextInt(dst.length) + 1, TIMEOUT_NS);
+            for (int i = 0; i < len; i++) {
+                if (dst[i] != (byte) (read + i)) {
+                    throw new AssertionError("Corrupted at byte " + (read + i));
+                }
+            }
+            read += len;
+            if (len == 0 && !producer.isAlive()) {
+                break;
+            }
+        }
+        long consumerAllocated = allocatedBytes() - allocated;
+        producer.join();
+        assertEquals(null, error.get());
+        assertEquals(STREAM_BYTES, read);
+        assertEquals(0, ring.available());
+        assertTrue("Producer allocated " + producerAllocated.get() + " bytes",
+                producerAllocated.get() < ALLOCATION_LIMIT);
+        assertTrue("Consumer allocated " + consumerAllocated + " bytes",
+                consumerAllocated < ALLOCATION_LIMIT);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static byte[] sequence(int start, int len) {
+        byte[] buf = new byte[len];
+        for (int i = 0; i < len; i++) {
+            buf[i] = (byte) (start + i);
+        }
+        return buf;
+    }
+
+    private static byte[] copyOf(byte[] src, int len) {
+        byte[] buf = new byte[len];
+        System.arraycopy(src, 0, buf, 0, len);
+        return buf;
+    }
+}